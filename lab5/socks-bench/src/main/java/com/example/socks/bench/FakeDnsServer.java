@@ -0,0 +1,96 @@
+package com.example.socks.bench;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class FakeDnsServer {
+    private static final int TYPE_A = 1;
+
+    private final DatagramChannel channel;
+    private final byte[] answer;
+    private final int ttl;
+    private final AtomicLong queries = new AtomicLong();
+
+    private FakeDnsServer(DatagramChannel channel, Inet4Address answer, int ttl) {
+        this.channel = channel;
+        this.answer = answer.getAddress();
+        this.ttl = ttl;
+    }
+
+    public static FakeDnsServer start(int port, Inet4Address answer, int ttl) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        FakeDnsServer server = new FakeDnsServer(channel, answer, ttl);
+        Thread t = new Thread(server::serve, "fake-dns");
+        t.setDaemon(true);
+        t.start();
+        return server;
+    }
+
+    public long getQueries() {
+        return queries.get();
+    }
+
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    private void serve() {
+        ByteBuffer query = ByteBuffer.allocate(512);
+        ByteBuffer response = ByteBuffer.allocate(512);
+        while (true) {
+            SocketAddress from;
+            query.clear();
+            try {
+                from = channel.receive(query);
+            } catch (IOException e) {
+                return;
+            }
+            query.flip();
+            response.clear();
+            if (!answer(query, response)) continue;
+            response.flip();
+            queries.incrementAndGet();
+            try {
+                channel.send(response, from);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private boolean answer(ByteBuffer query, ByteBuffer response) {
+        if (query.remaining() < 17 || query.getShort(4) != 1) return false;
+        int i = 12;
+        while (i < query.limit() && query.get(i) != 0) {
+            i += 1 + (query.get(i) & 0xff);
+        }
+        int questionEnd = i + 5;
+        if (questionEnd > query.limit()) return false;
+        int type = query.getShort(i + 1) & 0xffff;
+        boolean a = type == TYPE_A;
+        response.putShort(query.getShort(0));
+        response.putShort((short) 0x8180);
+        response.putShort((short) 1);
+        response.putShort((short) (a ? 1 : 0));
+        response.putShort((short) 0);
+        response.putShort((short) 0);
+        for (int j = 12; j < questionEnd; j++) {
+            response.put(query.get(j));
+        }
+        if (a) {
+            response.putShort((short) 0xc00c);
+            response.putShort((short) TYPE_A);
+            response.putShort((short) 1);
+            response.putInt(ttl);
+            response.putShort((short) answer.length);
+            response.put(answer);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.socks.bench;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class InteractiveLatencyBench {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: InteractiveLatencyBench <proxyHost:port> [bulkFlows=8] [interactive=4] [seconds=10] [payload=64]");
+            return;
+        }
+        String[] hp = args[0].split(":");
+        InetSocketAddress proxy = new InetSocketAddress(hp[0], Integer.parseInt(hp[1]));
+        int bulkFlows = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int interactive = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        int payload = args.length > 4 ? Integer.parseInt(args[4]) : 64;
+
+        InetSocketAddress echo = TargetServers.startEcho();
+        InetSocketAddress source = TargetServers.startSource();
+        AtomicLong bulkBytes = new AtomicLong();
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        long warmupEnd = System.nanoTime() + 1_000_000_000L;
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < bulkFlows; i++) {
+            threads.add(start("bulk-" + i, () -> {
+                try (Socket s = Socks5Client.connect(proxy, source, 5000)) {
+                    InputStream in = s.getInputStream();
+                    byte[] buf = new byte[64 * 1024];
+                    int n;
+                    while (System.nanoTime() < end && (n = in.read(buf)) > 0) {
+                        bulkBytes.addAndGet(n);
+                    }
+                }
+            }));
+        }
+        List<long[]> samples = new ArrayList<>();
+        for (int i = 0; i < interactive; i++) {
+            long[] rtts = new long[seconds * 1000];
+            samples.add(rtts);
+            threads.add(start("interactive-" + i, () -> {
+                try (Socket s = Socks5Client.connect(proxy, echo, 5000)) {
+                    OutputStream out = s.getOutputStream();
+                    DataInputStream in = new DataInputStream(s.getInputStream());
+                    byte[] msg = new byte[payload];
+                    int count = 0;
+                    while (System.nanoTime() < end && count < rtts.length - 1) {
+                        long t0 = System.nanoTime();
+                        out.write(msg);
+                        in.readFully(msg);
+                        long rtt = System.nanoTime() - t0;
+                        if (t0 > warmupEnd) {
+                            rtts[++count] = rtt;
+                        }
+                        Thread.sleep(5);
+                    }
+                    rtts[0] = count;
+                }
+            }));
+        }
+        long started = System.nanoTime();
+        for (Thread t : threads) {
+            t.join();
+        }
+        double elapsed = (System.nanoTime() - started) / 1e9;
+
+        int total = 0;
+        for (long[] rtts : samples) {
+            total += (int) rtts[0];
+        }
+        long[] all = new long[total];
+        int k = 0;
+        for (long[] rtts : samples) {
+            System.arraycopy(rtts, 1, all, k, (int) rtts[0]);
+            k += (int) rtts[0];
+        }
+        Arrays.sort(all);
+        System.out.printf("bulk flows %d, interactive clients %d, payload %d bytes, %.1f s%n",
+                bulkFlows, interactive, payload, elapsed);
+        System.out.printf("bulk throughput %.2f Gbit/s%n", bulkBytes.get() * 8 / elapsed / 1e9);
+        System.out.printf("interactive rtt (us): samples %d, p50 %d, p90 %d, p99 %d, p99.9 %d, max %d%n",
+                total, percentile(all, 50), percentile(all, 90), percentile(all, 99), percentile(all, 99.9),
+                total > 0 ? all[total - 1] / 1000 : 0);
+    }
+
+    static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        int index = (int) Math.ceil(p / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1000;
+    }
+
+    private static Thread start(String name, Task task) {
+        Thread t = new Thread(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                System.out.println(name + ": " + e);
+            }
+        }, name);
+        t.start();
+        return t;
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+}
@@ -0,0 +1,490 @@
+package com.example.socks.bench;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+public class LoadGenerator {
+    private static final String DOMAIN = "target.bench";
+    private static final long RETRY_DELAY_MS = 10;
+    private static final int WRITE_QUANTUM = 256 * 1024;
+    private static final long MAX_COUNTED_RUN_NANOS = 600_000_000_000L;
+
+    enum Target {ECHO, SINK}
+
+    static final class Scenario {
+        final String name;
+        final Target target;
+        final boolean domain;
+        final boolean churn;
+
+        Scenario(String name, Target target, boolean domain, boolean churn) {
+            this.name = name;
+            this.target = target;
+            this.domain = domain;
+            this.churn = churn;
+        }
+
+        static Scenario forName(String name) {
+            switch (name) {
+                case "churn":
+                    return new Scenario(name, Target.ECHO, false, true);
+                case "dns-churn":
+                    return new Scenario(name, Target.ECHO, true, true);
+                case "echo":
+                    return new Scenario(name, Target.ECHO, false, false);
+                case "upload":
+                    return new Scenario(name, Target.SINK, false, false);
+                default:
+                    throw new IllegalArgumentException("unknown scenario: " + name);
+            }
+        }
+    }
+
+    private final InetSocketAddress proxy;
+    private final int sessions;
+    private final int threads;
+    private final long warmupNanos;
+    private final long durationNanos;
+    private final int requestsPerConnection;
+    private final int connectionLimit;
+    private final boolean pipelined;
+    private final InetSocketAddress echo;
+    private final InetSocketAddress sink;
+    private final FakeDnsServer dns;
+
+    LoadGenerator(InetSocketAddress proxy, Map<String, String> options) throws IOException {
+        this.proxy = proxy;
+        this.sessions = intOption(options, "sessions", 1000);
+        this.threads = intOption(options, "threads", Runtime.getRuntime().availableProcessors());
+        this.warmupNanos = intOption(options, "warmup", 2) * 1_000_000_000L;
+        this.durationNanos = intOption(options, "seconds", 10) * 1_000_000_000L;
+        this.requestsPerConnection = intOption(options, "requests", 1);
+        this.connectionLimit = intOption(options, "connections", 0);
+        this.pipelined = Boolean.parseBoolean(options.getOrDefault("pipelined", "false"));
+        int targetThreads = intOption(options, "target-threads", Math.max(1, threads / 2));
+        this.echo = NioTargetServer.start(NioTargetServer.Mode.ECHO, targetThreads);
+        this.sink = NioTargetServer.start(NioTargetServer.Mode.SINK, targetThreads);
+        this.dns = FakeDnsServer.start(intOption(options, "dns-port", 15353),
+                (Inet4Address) InetAddress.getByName("127.0.0.1"), intOption(options, "dns-ttl", 0));
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || !args[0].contains(":")) {
+            System.out.println("Usage: LoadGenerator <proxyHost:port> [--scenarios=churn,dns-churn,echo,upload] [--payload=64,16384]"
+                    + " [--sessions=1000] [--threads=N] [--seconds=10] [--warmup=2] [--requests=1] [--connections=0] [--pipelined=false]"
+                    + " [--dns-port=15353] [--dns-ttl=0] [--target-threads=N]");
+            return;
+        }
+        int colon = args[0].lastIndexOf(':');
+        InetSocketAddress proxy = new InetSocketAddress(args[0].substring(0, colon), Integer.parseInt(args[0].substring(colon + 1)));
+        Map<String, String> options = new HashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            if (!args[i].startsWith("--") || eq < 0) {
+                System.out.println("bad option: " + args[i]);
+                return;
+            }
+            options.put(args[i].substring(2, eq), args[i].substring(eq + 1));
+        }
+        List<Scenario> scenarios = new ArrayList<>();
+        for (String name : options.getOrDefault("scenarios", "churn,dns-churn,echo,upload").split(",")) {
+            scenarios.add(Scenario.forName(name.trim()));
+        }
+        List<Integer> payloads = new ArrayList<>();
+        for (String size : options.getOrDefault("payload", "64,16384").split(",")) {
+            payloads.add(Integer.parseInt(size.trim()));
+        }
+
+        LoadGenerator generator = new LoadGenerator(proxy, options);
+        System.out.println("echo " + generator.echo + ", sink " + generator.sink + ", fake DNS " + generator.dns.getAddress()
+                + " (start the proxy with --dns=127.0.0.1:" + generator.dns.getAddress().getPort() + " for dns-churn)");
+        System.out.printf("%-10s %8s %8s %10s %10s %8s %8s  %-24s %-24s %7s%n", "scenario", "payload", "sessions",
+                "conn/s", "req/s", "Gbit/s", "dns q/s", "setup us p50/p99/p999", "rtt us p50/p99/p999", "errors");
+        for (Scenario scenario : scenarios) {
+            for (int payload : payloads) {
+                Result r = generator.run(scenario, payload);
+                System.out.printf("%-10s %8d %8d %10.0f %10.0f %8.3f %8.0f  %-24s %-24s %7d%n", scenario.name, payload,
+                        generator.sessions, r.connections / r.seconds, r.requests / r.seconds,
+                        r.bytes * 8 / r.seconds / 1e9, r.dnsQueries / r.seconds,
+                        percentiles(r.setup), percentiles(r.rtt), r.errors);
+            }
+        }
+    }
+
+    Result run(Scenario scenario, int payloadSize) throws InterruptedException, IOException {
+        ByteBuffer payload = ByteBuffer.allocateDirect(payloadSize);
+        for (int i = 0; i < payloadSize; i++) {
+            payload.put((byte) i);
+        }
+        payload.flip();
+        InetSocketAddress target = scenario.target == Target.ECHO ? echo : sink;
+        ByteBuffer request = requestFor(scenario.domain ? InetSocketAddress.createUnresolved(DOMAIN, target.getPort()) : target);
+
+        boolean counted = scenario.churn && connectionLimit > 0;
+        long startedAt = System.nanoTime();
+        long measureFrom = counted ? startedAt : startedAt + warmupNanos;
+        long end = counted ? startedAt + MAX_COUNTED_RUN_NANOS : measureFrom + durationNanos;
+        Worker[] workers = new Worker[threads];
+        Thread[] running = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            int share = sessions / threads + (i < sessions % threads ? 1 : 0);
+            int quota = counted ? connectionLimit / threads + (i < connectionLimit % threads ? 1 : 0) : 0;
+            workers[i] = new Worker(scenario, share, quota, request, payload, measureFrom, end);
+            running[i] = new Thread(workers[i], "load-" + i);
+            running[i].start();
+        }
+        long now;
+        while ((now = System.nanoTime()) < measureFrom) {
+            Thread.sleep(Math.max(1, (measureFrom - now) / 1_000_000));
+        }
+        long dnsBefore = dns.getQueries();
+        for (Thread t : running) {
+            t.join();
+        }
+        Result result = new Result(counted ? (System.nanoTime() - startedAt) / 1e9 : durationNanos / 1e9);
+        result.dnsQueries = dns.getQueries() - dnsBefore;
+        for (Worker w : workers) {
+            result.connections += w.connections;
+            result.requests += w.requests;
+            result.bytes += w.bytes;
+            result.errors += w.errors;
+            result.setup.add(w.setup);
+            result.rtt.add(w.rtt);
+        }
+        return result;
+    }
+
+    private ByteBuffer requestFor(InetSocketAddress target) {
+        ByteBuffer request = ByteBuffer.allocate(3 + 7 + 255);
+        request.put((byte) 0x05).put((byte) 0x01).put((byte) 0x00);
+        request.put((byte) 0x05).put((byte) 0x01).put((byte) 0x00);
+        if (target.isUnresolved()) {
+            byte[] name = target.getHostString().getBytes(StandardCharsets.US_ASCII);
+            request.put((byte) 0x03).put((byte) name.length).put(name);
+        } else {
+            request.put((byte) 0x01).put(target.getAddress().getAddress());
+        }
+        request.putShort((short) target.getPort());
+        request.flip();
+        return request;
+    }
+
+    private static String percentiles(Histogram h) {
+        if (h.count() == 0) return "-";
+        return h.percentile(50) + "/" + h.percentile(99) + "/" + h.percentile(99.9);
+    }
+
+    private static int intOption(Map<String, String> options, String key, int defaultValue) {
+        String value = options.get(key);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    static final class Result {
+        final double seconds;
+        final Histogram setup = new Histogram();
+        final Histogram rtt = new Histogram();
+        long connections;
+        long requests;
+        long bytes;
+        long errors;
+        long dnsQueries;
+
+        Result(double seconds) {
+            this.seconds = seconds;
+        }
+    }
+
+    private final class Worker implements Runnable {
+        private final Scenario scenario;
+        private final int sessionCount;
+        private final int quota;
+        private final ByteBuffer request;
+        private final ByteBuffer payload;
+        private final long measureFrom;
+        private final long end;
+        private final ByteBuffer scratch = ByteBuffer.allocateDirect(64 * 1024);
+        private final Histogram setup = new Histogram();
+        private final Histogram rtt = new Histogram();
+        private Selector selector;
+        private int reopen;
+        private int opened;
+        private int active;
+        private long connections;
+        private long requests;
+        private long bytes;
+        private long errors;
+
+        private Worker(Scenario scenario, int sessionCount, int quota, ByteBuffer request, ByteBuffer payload,
+                       long measureFrom, long end) {
+            this.scenario = scenario;
+            this.sessionCount = quota > 0 ? Math.min(sessionCount, quota) : sessionCount;
+            this.quota = quota;
+            this.request = request;
+            this.payload = payload;
+            this.measureFrom = measureFrom;
+            this.end = end;
+        }
+
+        @Override
+        public void run() {
+            try {
+                selector = Selector.open();
+                for (int i = 0; i < sessionCount; i++) {
+                    open();
+                }
+                long now;
+                while ((now = System.nanoTime()) < end && (quota == 0 || active > 0 || reopen > 0)) {
+                    selector.select(reopen > 0 ? RETRY_DELAY_MS : Math.max(1, (end - now) / 1_000_000));
+                    for (int i = reopen; i > 0; i--) {
+                        reopen--;
+                        open();
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Session session = (Session) key.attachment();
+                        try {
+                            session.handle(key);
+                        } catch (IOException e) {
+                            session.fail();
+                        }
+                    }
+                }
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void open() {
+            if (quota > 0 && opened >= quota) return;
+            opened++;
+            active++;
+            Session session = new Session();
+            try {
+                session.start();
+            } catch (IOException e) {
+                session.close();
+                if (measuring(System.nanoTime())) {
+                    errors++;
+                }
+                reopen++;
+            }
+        }
+
+        private boolean measuring(long now) {
+            return now >= measureFrom && now < end;
+        }
+
+        private final class Session {
+            private static final int CONNECTING = 0;
+            private static final int METHOD = 1;
+            private static final int REPLY = 2;
+            private static final int SEND = 3;
+            private static final int RECEIVE = 4;
+
+            private final ByteBuffer in = ByteBuffer.allocate(512);
+            private final ByteBuffer data = payload.duplicate();
+            private ByteBuffer out;
+            private SocketChannel channel;
+            private SelectionKey key;
+            private int state;
+            private long startedAt;
+            private long sentAt;
+            private int received;
+            private int done;
+
+            private void start() throws IOException {
+                startedAt = System.nanoTime();
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                state = CONNECTING;
+                if (channel.connect(proxy)) {
+                    key = channel.register(selector, 0, this);
+                    sendHandshake();
+                } else {
+                    key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+                }
+            }
+
+            private void handle(SelectionKey key) throws IOException {
+                if (state == CONNECTING) {
+                    if (!channel.finishConnect()) return;
+                    sendHandshake();
+                    return;
+                }
+                if (key.isWritable()) {
+                    if (state == SEND) {
+                        sendPayload();
+                    } else {
+                        flush();
+                    }
+                    return;
+                }
+                if (state == RECEIVE) {
+                    receivePayload();
+                    return;
+                }
+                if (channel.read(in) < 0) {
+                    throw new IOException("proxy closed the connection");
+                }
+                in.flip();
+                try {
+                    if (state == METHOD && in.remaining() >= 2) {
+                        if (in.get() != 0x05 || in.get() != 0x00) {
+                            throw new IOException("proxy refused method selection");
+                        }
+                        state = REPLY;
+                        if (!pipelined) {
+                            out = request.duplicate();
+                            out.position(3);
+                            flush();
+                        }
+                    }
+                    if (state == REPLY && in.remaining() >= 5) {
+                        int atyp = in.get(in.position() + 3);
+                        int length = atyp == 0x04 ? 22 : atyp == 0x03 ? 7 + (in.get(in.position() + 4) & 0xff) : 10;
+                        if (in.remaining() >= length) {
+                            if (in.get(in.position() + 1) != 0x00) {
+                                throw new IOException("proxy replied " + in.get(in.position() + 1));
+                            }
+                            in.position(in.position() + length);
+                            long now = System.nanoTime();
+                            if (measuring(now)) {
+                                setup.record((now - startedAt) / 1000);
+                            }
+                            startPayload();
+                        }
+                    }
+                } finally {
+                    in.compact();
+                }
+            }
+
+            private void sendHandshake() throws IOException {
+                state = METHOD;
+                out = request.duplicate();
+                if (!pipelined) {
+                    out.limit(3);
+                }
+                flush();
+            }
+
+            private void flush() throws IOException {
+                channel.write(out);
+                key.interestOps(out.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            }
+
+            private void startPayload() throws IOException {
+                state = SEND;
+                data.clear();
+                sentAt = System.nanoTime();
+                sendPayload();
+            }
+
+            private void sendPayload() throws IOException {
+                long written = 0;
+                while (true) {
+                    channel.write(data);
+                    if (data.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    if (scenario.target == Target.ECHO) {
+                        state = RECEIVE;
+                        received = 0;
+                        key.interestOps(SelectionKey.OP_READ);
+                        return;
+                    }
+                    if (!completeRequest(data.capacity())) return;
+                    data.clear();
+                    written += data.capacity();
+                    if (written >= WRITE_QUANTUM) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+            }
+
+            private void receivePayload() throws IOException {
+                int n;
+                while (received < data.capacity()) {
+                    scratch.clear();
+                    scratch.limit(Math.min(scratch.capacity(), data.capacity() - received));
+                    n = channel.read(scratch);
+                    if (n < 0) throw new IOException("echo closed the connection");
+                    if (n == 0) return;
+                    received += n;
+                }
+                long now = System.nanoTime();
+                if (measuring(now)) {
+                    rtt.record((now - sentAt) / 1000);
+                }
+                if (completeRequest(2L * data.capacity())) {
+                    startPayload();
+                }
+            }
+
+            private boolean completeRequest(long transferred) {
+                long now = System.nanoTime();
+                if (measuring(now)) {
+                    requests++;
+                    bytes += transferred;
+                }
+                done++;
+                if (scenario.churn && requestsPerConnection > 0 && done >= requestsPerConnection) {
+                    close();
+                    if (measuring(now)) {
+                        connections++;
+                    }
+                    if (now < end) {
+                        open();
+                    }
+                    return false;
+                }
+                return true;
+            }
+
+            private void fail() {
+                long now = System.nanoTime();
+                if (measuring(now)) {
+                    errors++;
+                }
+                close();
+                if (now < end) {
+                    open();
+                }
+            }
+
+            private void close() {
+                active--;
+                if (key != null) {
+                    key.cancel();
+                }
+                if (channel == null) return;
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.socks.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public final class NioTargetServer {
+    enum Mode {ECHO, SINK}
+
+    private static final int ECHO_BUFFER = 8 * 1024;
+
+    private NioTargetServer() {
+    }
+
+    public static InetSocketAddress start(Mode mode, int threads) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4096);
+        Loop[] loops = new Loop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new Loop(mode);
+            Thread t = new Thread(loops[i], mode.name().toLowerCase() + "-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        Thread acceptor = new Thread(() -> {
+            int next = 0;
+            while (true) {
+                try {
+                    loops[next].assign(server.accept());
+                } catch (IOException e) {
+                    return;
+                }
+                next = (next + 1) % loops.length;
+            }
+        }, mode.name().toLowerCase() + "-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    private static final class Loop implements Runnable {
+        private final Mode mode;
+        private final Selector selector;
+        private final Queue<SocketChannel> incoming = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer scratch = ByteBuffer.allocateDirect(64 * 1024);
+
+        private Loop(Mode mode) throws IOException {
+            this.mode = mode;
+            this.selector = Selector.open();
+        }
+
+        private void assign(SocketChannel ch) {
+            incoming.add(ch);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    selector.select();
+                    SocketChannel ch;
+                    while ((ch = incoming.poll()) != null) {
+                        ch.configureBlocking(false);
+                        ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                        ch.register(selector, SelectionKey.OP_READ, mode == Mode.ECHO ? ByteBuffer.allocate(ECHO_BUFFER) : null);
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        try {
+                            handle(key);
+                        } catch (IOException e) {
+                            close(key);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void handle(SelectionKey key) throws IOException {
+            SocketChannel ch = (SocketChannel) key.channel();
+            if (mode == Mode.SINK) {
+                int n;
+                do {
+                    scratch.clear();
+                    n = ch.read(scratch);
+                } while (n > 0);
+                if (n < 0) {
+                    close(key);
+                }
+                return;
+            }
+            ByteBuffer buf = (ByteBuffer) key.attachment();
+            if (key.isReadable() && ch.read(buf) < 0) {
+                close(key);
+                return;
+            }
+            buf.flip();
+            ch.write(buf);
+            boolean pending = buf.hasRemaining();
+            buf.compact();
+            key.interestOps(pending ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        private static void close(SelectionKey key) {
+            key.cancel();
+            try {
+                key.channel().close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
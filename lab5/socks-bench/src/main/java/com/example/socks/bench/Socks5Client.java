@@ -0,0 +1,50 @@
+package com.example.socks.bench;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+public final class Socks5Client {
+    private Socks5Client() {
+    }
+
+    public static Socket connect(InetSocketAddress proxy, InetSocketAddress target, int timeoutMillis) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(proxy, timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.write(new byte[]{0x05, 0x01, 0x00});
+            byte[] method = new byte[2];
+            in.readFully(method);
+            if (method[0] != 0x05 || method[1] != 0x00) {
+                throw new IOException("proxy refused method selection");
+            }
+            byte[] addr = target.getAddress().getAddress();
+            byte[] request = new byte[4 + addr.length + 2];
+            request[0] = 0x05;
+            request[1] = 0x01;
+            request[3] = target.getAddress() instanceof Inet6Address ? (byte) 0x04 : (byte) 0x01;
+            System.arraycopy(addr, 0, request, 4, addr.length);
+            request[request.length - 2] = (byte) (target.getPort() >> 8);
+            request[request.length - 1] = (byte) target.getPort();
+            out.write(request);
+            byte[] head = new byte[4];
+            in.readFully(head);
+            if (head[1] != 0x00) {
+                throw new IOException("proxy replied " + head[1]);
+            }
+            in.readFully(new byte[(head[3] == 0x04 ? 16 : 4) + 2]);
+            socket.setSoTimeout(0);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+}
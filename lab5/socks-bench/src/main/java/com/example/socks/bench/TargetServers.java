@@ -0,0 +1,66 @@
+package com.example.socks.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+public final class TargetServers {
+    private TargetServers() {
+    }
+
+    public static InetSocketAddress startEcho() throws IOException {
+        return start("echo", socket -> {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+        });
+    }
+
+    public static InetSocketAddress startSource() throws IOException {
+        return start("source", socket -> {
+            OutputStream out = socket.getOutputStream();
+            byte[] buf = new byte[64 * 1024];
+            while (true) {
+                out.write(buf);
+            }
+        });
+    }
+
+    private static InetSocketAddress start(String name, Handler handler) throws IOException {
+        ServerSocket server = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                Thread t = new Thread(() -> {
+                    try (Socket s = socket) {
+                        s.setTcpNoDelay(true);
+                        handler.handle(s);
+                    } catch (IOException ignored) {
+                    }
+                }, name + "-conn");
+                t.setDaemon(true);
+                t.start();
+            }
+        }, name + "-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return (InetSocketAddress) server.getLocalSocketAddress();
+    }
+
+    private interface Handler {
+        void handle(Socket socket) throws IOException;
+    }
+}
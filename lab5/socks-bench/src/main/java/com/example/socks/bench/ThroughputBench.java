@@ -0,0 +1,65 @@
+package com.example.socks.bench;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ThroughputBench {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: ThroughputBench <proxyHost:port> [streams=1] [gigabytes=4] [rounds=3]");
+            return;
+        }
+        String[] hp = args[0].split(":");
+        InetSocketAddress proxy = new InetSocketAddress(hp[0], Integer.parseInt(hp[1]));
+        int streams = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        double gigabytes = args.length > 2 ? Double.parseDouble(args[2]) : 4;
+        int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+        long perStream = (long) (gigabytes * (1L << 30)) / streams;
+
+        InetSocketAddress source = TargetServers.startSource();
+        download(proxy, source, streams, Math.min(perStream, 256L << 20));
+        double best = 0;
+        for (int round = 1; round <= rounds; round++) {
+            long started = System.nanoTime();
+            long bytes = download(proxy, source, streams, perStream);
+            double elapsed = (System.nanoTime() - started) / 1e9;
+            double gbps = bytes * 8 / elapsed / 1e9;
+            best = Math.max(best, gbps);
+            System.out.printf("round %d: %d streams, %.2f GB in %.2f s, %.2f Gbit/s%n",
+                    round, streams, bytes / (double) (1L << 30), elapsed, gbps);
+        }
+        System.out.printf("best %.2f Gbit/s%n", best);
+    }
+
+    private static long download(InetSocketAddress proxy, InetSocketAddress source, int streams, long perStream)
+            throws InterruptedException {
+        AtomicLong total = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < streams; i++) {
+            Thread t = new Thread(() -> {
+                try (Socket s = Socks5Client.connect(proxy, source, 5000)) {
+                    InputStream in = s.getInputStream();
+                    byte[] buf = new byte[256 * 1024];
+                    long received = 0;
+                    int n;
+                    while (received < perStream && (n = in.read(buf)) > 0) {
+                        received += n;
+                    }
+                    total.addAndGet(received);
+                } catch (Exception e) {
+                    System.out.println(Thread.currentThread().getName() + ": " + e);
+                }
+            }, "stream-" + i);
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        return total.get();
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.socks;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class AccessControl {
+    private static final long RELOAD_CHECK_MS = 1000;
+
+    private final Path file;
+    private volatile AclRules rules;
+    private long loadedModified = -1;
+    private long loadedSize = -1;
+
+    public AccessControl(Path file) throws IOException {
+        this.file = file;
+        if (file == null) {
+            this.rules = AclRules.allowAll();
+            return;
+        }
+        reload();
+        System.out.println("Loaded " + rules.size() + " ACL rules from " + file
+                + ", default " + (rules.isDefaultAllow() ? "allow" : "deny"));
+        Thread reloader = new Thread(this::watch, "acl-reloader");
+        reloader.setDaemon(true);
+        reloader.start();
+    }
+
+    AclRules rules() {
+        return rules;
+    }
+
+    boolean allowsHost(String host, int port) {
+        AclRules current = rules;
+        return current.allows(current.checkHost(host, port));
+    }
+
+    boolean allowsAddress(InetAddress address, int port) {
+        AclRules current = rules;
+        return current.allows(current.checkAddress(address, port));
+    }
+
+    private void watch() {
+        while (true) {
+            try {
+                Thread.sleep(RELOAD_CHECK_MS);
+                reload();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                if (Log.allow()) {
+                    Log.info("Keeping previous ACL, reload of " + file + " failed: " + e);
+                }
+            }
+        }
+    }
+
+    private void reload() throws IOException {
+        long modified = Files.getLastModifiedTime(file).toMillis();
+        long size = Files.size(file);
+        if (modified == loadedModified && size == loadedSize) return;
+        loadedModified = modified;
+        loadedSize = size;
+        AclRules compiled = AclRules.compile(Files.readAllLines(file, StandardCharsets.UTF_8));
+        boolean initial = rules == null;
+        rules = compiled;
+        if (!initial) {
+            if (Log.allow()) {
+                Log.info("Reloaded " + compiled.size() + " ACL rules from " + file);
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.example.socks;
+
+import org.xbill.DNS.Address;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+public final class AclRules {
+    enum Decision {ALLOW, DENY, NO_MATCH}
+
+    private final boolean defaultAllow;
+    private final int ruleCount;
+    private final CidrNode v4 = new CidrNode();
+    private final CidrNode v6 = new CidrNode();
+    private final DomainNode domains = new DomainNode();
+
+    private AclRules(boolean defaultAllow, int ruleCount) {
+        this.defaultAllow = defaultAllow;
+        this.ruleCount = ruleCount;
+    }
+
+    static AclRules allowAll() {
+        return new AclRules(true, 0);
+    }
+
+    static AclRules compile(List<String> lines) {
+        boolean defaultAllow = true;
+        List<String[]> parsed = new ArrayList<>();
+        int lineNo = 0;
+        for (String line : lines) {
+            lineNo++;
+            String s = line.trim();
+            int hash = s.indexOf('#');
+            if (hash >= 0) s = s.substring(0, hash).trim();
+            if (s.isEmpty()) continue;
+            String[] parts = s.split("\\s+");
+            if (parts[0].equals("default") && parts.length == 2) {
+                defaultAllow = parseAction(parts[1], lineNo);
+                continue;
+            }
+            if (parts.length < 2 || parts.length > 3) {
+                throw new IllegalArgumentException("line " + lineNo + ": expected allow|deny <cidr|domain|*> [ports]");
+            }
+            parseAction(parts[0], lineNo);
+            parsed.add(parts);
+        }
+        AclRules rules = new AclRules(defaultAllow, parsed.size());
+        for (String[] parts : parsed) {
+            Rule rule = new Rule(parts[0].equals("allow"), parts.length == 3 ? parsePorts(parts[2]) : null);
+            rules.add(parts[1], rule);
+        }
+        return rules;
+    }
+
+    boolean isDefaultAllow() {
+        return defaultAllow;
+    }
+
+    int size() {
+        return ruleCount;
+    }
+
+    Decision checkHost(String host, int port) {
+        String[] labels = DnsCache.normalize(host).split("\\.");
+        DomainNode node = domains;
+        Rule best = node.match(port);
+        for (int i = labels.length - 1; i >= 0 && node != null; i--) {
+            node = node.children.get(labels[i]);
+            if (node != null) {
+                Rule r = node.match(port);
+                if (r != null) best = r;
+            }
+        }
+        return decision(best);
+    }
+
+    Decision checkAddress(InetAddress address, int port) {
+        byte[] bits = address.getAddress();
+        CidrNode node = bits.length == 4 ? v4 : v6;
+        Rule best = node.match(port);
+        for (int i = 0; i < bits.length * 8 && node != null; i++) {
+            node = node.children[(bits[i >> 3] >> (7 - (i & 7))) & 1];
+            if (node != null) {
+                Rule r = node.match(port);
+                if (r != null) best = r;
+            }
+        }
+        return decision(best);
+    }
+
+    boolean allows(Decision decision) {
+        return decision == Decision.NO_MATCH ? defaultAllow : decision == Decision.ALLOW;
+    }
+
+    private static Decision decision(Rule rule) {
+        if (rule == null) return Decision.NO_MATCH;
+        return rule.allow ? Decision.ALLOW : Decision.DENY;
+    }
+
+    private void add(String target, Rule rule) {
+        if (target.equals("*")) {
+            domains.rules.add(rule);
+            v4.rules.add(rule);
+            v6.rules.add(rule);
+            return;
+        }
+        int slash = target.indexOf('/');
+        String addr = slash >= 0 ? target.substring(0, slash) : target;
+        InetAddress ip;
+        try {
+            ip = Address.getByAddress(addr);
+        } catch (UnknownHostException e) {
+            ip = null;
+        }
+        if (ip == null) {
+            if (slash >= 0) {
+                throw new IllegalArgumentException("bad CIDR: " + target);
+            }
+            addDomain(target, rule);
+            return;
+        }
+        byte[] bits = ip.getAddress();
+        int prefix = slash >= 0 ? Integer.parseInt(target.substring(slash + 1)) : bits.length * 8;
+        if (prefix < 0 || prefix > bits.length * 8) {
+            throw new IllegalArgumentException("bad prefix length: " + target);
+        }
+        CidrNode node = bits.length == 4 ? v4 : v6;
+        for (int i = 0; i < prefix; i++) {
+            int bit = (bits[i >> 3] >> (7 - (i & 7))) & 1;
+            if (node.children[bit] == null) {
+                node.children[bit] = new CidrNode();
+            }
+            node = node.children[bit];
+        }
+        node.rules.add(rule);
+    }
+
+    private void addDomain(String target, Rule rule) {
+        String domain = target.toLowerCase(Locale.ROOT);
+        if (domain.startsWith("*.")) domain = domain.substring(2);
+        if (domain.startsWith(".")) domain = domain.substring(1);
+        String[] labels = DnsCache.normalize(domain).split("\\.");
+        DomainNode node = domains;
+        for (int i = labels.length - 1; i >= 0; i--) {
+            if (labels[i].isEmpty()) {
+                throw new IllegalArgumentException("bad domain: " + target);
+            }
+            node = node.children.computeIfAbsent(labels[i], l -> new DomainNode());
+        }
+        node.rules.add(rule);
+    }
+
+    private static boolean parseAction(String action, int lineNo) {
+        if (action.equals("allow")) return true;
+        if (action.equals("deny")) return false;
+        throw new IllegalArgumentException("line " + lineNo + ": expected allow or deny, got " + action);
+    }
+
+    private static int[] parsePorts(String value) {
+        String[] parts = value.split(",");
+        int[] ranges = new int[parts.length * 2];
+        for (int i = 0; i < parts.length; i++) {
+            String p = parts[i].trim();
+            int dash = p.indexOf('-');
+            ranges[2 * i] = Integer.parseInt(dash >= 0 ? p.substring(0, dash) : p);
+            ranges[2 * i + 1] = Integer.parseInt(dash >= 0 ? p.substring(dash + 1) : p);
+        }
+        return ranges;
+    }
+
+    private static final class Rule {
+        private final boolean allow;
+        private final int[] ports;
+
+        private Rule(boolean allow, int[] ports) {
+            this.allow = allow;
+            this.ports = ports;
+        }
+
+        private boolean covers(int port) {
+            if (ports == null) return true;
+            for (int i = 0; i < ports.length; i += 2) {
+                if (port >= ports[i] && port <= ports[i + 1]) return true;
+            }
+            return false;
+        }
+    }
+
+    private static class RuleNode {
+        final List<Rule> rules = new ArrayList<>(1);
+
+        Rule match(int port) {
+            for (int i = 0; i < rules.size(); i++) {
+                Rule r = rules.get(i);
+                if (r.covers(port)) return r;
+            }
+            return null;
+        }
+    }
+
+    private static final class CidrNode extends RuleNode {
+        private final CidrNode[] children = new CidrNode[2];
+    }
+
+    private static final class DomainNode extends RuleNode {
+        private final Map<String, DomainNode> children = new HashMap<>(4);
+    }
+}
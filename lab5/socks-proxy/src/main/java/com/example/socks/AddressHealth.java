@@ -0,0 +1,76 @@
+package com.example.socks;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class AddressHealth {
+    private static final int MAX_ENTRIES = 100_000;
+    private static final long MAX_PENALTY_MS = 5 * 60 * 1000;
+
+    private final long basePenaltyMillis;
+    private final ConcurrentHashMap<InetAddress, Stat> stats = new ConcurrentHashMap<>();
+
+    public AddressHealth(long basePenaltyMillis) {
+        this.basePenaltyMillis = basePenaltyMillis;
+    }
+
+    public boolean isSuspect(InetAddress address) {
+        Stat stat = stats.get(address);
+        return stat != null && stat.retryAfter - Reactor.now() > 0;
+    }
+
+    public void recordSuccess(InetAddress address) {
+        stats.remove(address);
+    }
+
+    public void recordFailure(InetAddress address) {
+        if (basePenaltyMillis <= 0) return;
+        long now = Reactor.now();
+        if (stats.size() >= MAX_ENTRIES) {
+            stats.values().removeIf(s -> s.retryAfter - now <= 0);
+        }
+        stats.compute(address, (a, stat) -> {
+            int failures = stat == null ? 1 : stat.failures + 1;
+            long penalty = Math.min(MAX_PENALTY_MS, basePenaltyMillis << Math.min(failures - 1, 20));
+            return new Stat(failures, now + penalty);
+        });
+    }
+
+    public List<InetAddress> connectOrder(List<InetAddress> addresses) {
+        List<InetAddress> v6 = new ArrayList<>();
+        List<InetAddress> v4 = new ArrayList<>();
+        List<InetAddress> suspect = new ArrayList<>();
+        for (InetAddress address : addresses) {
+            if (isSuspect(address)) {
+                suspect.add(address);
+            } else if (address instanceof Inet6Address) {
+                v6.add(address);
+            } else {
+                v4.add(address);
+            }
+        }
+        List<InetAddress> ordered = new ArrayList<>(addresses.size());
+        for (int i = 0; i < Math.max(v6.size(), v4.size()); i++) {
+            if (i < v6.size()) ordered.add(v6.get(i));
+            if (i < v4.size()) ordered.add(v4.get(i));
+        }
+        return ordered.isEmpty() ? suspect : ordered;
+    }
+
+    public int size() {
+        return stats.size();
+    }
+
+    private static final class Stat {
+        private final int failures;
+        private final long retryAfter;
+
+        private Stat(int failures, long retryAfter) {
+            this.failures = failures;
+            this.retryAfter = retryAfter;
+        }
+    }
+}
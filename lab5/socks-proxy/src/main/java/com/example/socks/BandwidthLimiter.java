@@ -0,0 +1,100 @@
+package com.example.socks;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class BandwidthLimiter {
+    private static final long BURST_DIVISOR = 10;
+    private static final int MIN_QUANTUM = 4096;
+
+    private final long sessionRate;
+    private final long clientRate;
+    private final long minBurst;
+    private final TokenBucket global;
+    private final ConcurrentHashMap<InetAddress, ClientBucket> clients = new ConcurrentHashMap<>();
+
+    public BandwidthLimiter(ProxyConfig config) {
+        this.sessionRate = config.sessionRate;
+        this.clientRate = config.clientRate;
+        this.minBurst = Math.max(config.bufferSize, MIN_QUANTUM);
+        this.global = config.globalRate > 0 ? bucket(config.globalRate) : null;
+    }
+
+    Throttle open(InetAddress client) {
+        TokenBucket session = sessionRate > 0 ? bucket(sessionRate) : null;
+        ClientBucket perClient = null;
+        if (clientRate > 0 && client != null) {
+            perClient = clients.compute(client, (a, b) -> {
+                ClientBucket result = b != null ? b : new ClientBucket(bucket(clientRate));
+                result.sessions++;
+                return result;
+            });
+        }
+        return new Throttle(client, session, perClient);
+    }
+
+    int trackedClients() {
+        return clients.size();
+    }
+
+    private TokenBucket bucket(long rate) {
+        return new TokenBucket(rate, Math.max(minBurst, rate / BURST_DIVISOR));
+    }
+
+    private static final class ClientBucket {
+        private final TokenBucket bucket;
+        private int sessions;
+
+        private ClientBucket(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+    }
+
+    final class Throttle {
+        private final InetAddress client;
+        private final TokenBucket[] buckets;
+        private boolean released;
+
+        private Throttle(InetAddress client, TokenBucket session, ClientBucket perClient) {
+            this.client = client;
+            int n = (session != null ? 1 : 0) + (perClient != null ? 1 : 0) + (global != null ? 1 : 0);
+            this.buckets = new TokenBucket[n];
+            int i = 0;
+            if (session != null) buckets[i++] = session;
+            if (perClient != null) buckets[i++] = perClient.bucket;
+            if (global != null) buckets[i] = global;
+        }
+
+        boolean isUnlimited() {
+            return buckets.length == 0;
+        }
+
+        int allowance() {
+            long allowed = Integer.MAX_VALUE;
+            for (TokenBucket bucket : buckets) {
+                allowed = Math.min(allowed, bucket.available());
+            }
+            return allowed < MIN_QUANTUM ? 0 : (int) allowed;
+        }
+
+        void consume(int bytes) {
+            for (TokenBucket bucket : buckets) {
+                bucket.consume(bytes);
+            }
+        }
+
+        long millisUntilReady() {
+            long wait = 0;
+            for (TokenBucket bucket : buckets) {
+                wait = Math.max(wait, bucket.millisUntilAvailable(MIN_QUANTUM));
+            }
+            return wait;
+        }
+
+        void release() {
+            if (released || clientRate <= 0 || client == null) return;
+            released = true;
+            clients.computeIfPresent(client, (a, b) -> --b.sessions == 0 ? null : b);
+        }
+    }
+}
@@ -0,0 +1,499 @@
+package com.example.socks;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BlockingSession implements Runnable {
+    private final BlockingSocksProxy proxy;
+    private final ProxyConfig config;
+    private final Metrics metrics;
+    private final Socket client;
+    private final ByteBuffer protoBuf = ByteBuffer.allocate(1024);
+    private Socket remote;
+    private UpstreamPool.Upstream upstream;
+    private ByteBuffer upstreamEarly;
+    private SocksSession.State state = SocksSession.State.HANDSHAKE;
+    private long requestedAt;
+    private volatile long lastActivity;
+    private boolean relaying = false;
+    private boolean firstByteSeen = false;
+    private Metrics.UserTraffic traffic;
+    private final BandwidthLimiter.Throttle throttle;
+    private final AtomicInteger finishedDirections = new AtomicInteger();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    public BlockingSession(BlockingSocksProxy proxy, Socket client) {
+        this.proxy = proxy;
+        this.config = proxy.getConfig();
+        this.metrics = proxy.getMetrics();
+        this.client = client;
+        this.throttle = proxy.getLimiter().open(client.getInetAddress());
+        metrics.sessionOpened(state);
+    }
+
+    @Override
+    public void run() {
+        try {
+            serve();
+        } catch (SocketTimeoutException e) {
+            if (state != SocksSession.State.RELAY) {
+                metrics.sessionTimeouts.increment();
+            }
+        } catch (IOException ignored) {
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            if (!relaying) {
+                close();
+            }
+        }
+    }
+
+    private void serve() throws IOException {
+        InputStream in = client.getInputStream();
+        OutputStream out = client.getOutputStream();
+        long deadline = deadlineAfter(config.handshakeTimeoutMillis);
+
+        Socks5Codec.Greeting greeting;
+        while ((greeting = parse(() -> Socks5Codec.parseGreeting(protoBuf))) == null) {
+            fill(in, deadline);
+        }
+        if (greeting.version != Socks5Codec.VERSION) {
+            return;
+        }
+        CredentialStore credentials = proxy.getCredentials();
+        byte method = credentials != null ? Socks5Codec.METHOD_USERNAME_PASSWORD : Socks5Codec.METHOD_NO_AUTH;
+        if (!greeting.offers(method)) {
+            out.write(new byte[]{Socks5Codec.VERSION, Socks5Codec.METHOD_NONE_ACCEPTABLE});
+            return;
+        }
+        out.write(new byte[]{Socks5Codec.VERSION, method});
+        if (credentials != null) {
+            setState(SocksSession.State.AUTH);
+            Socks5Codec.Credentials login;
+            while ((login = parse(() -> Socks5Codec.parseCredentials(protoBuf))) == null) {
+                fill(in, deadline);
+            }
+            if (login.version != Socks5Codec.AUTH_VERSION) {
+                return;
+            }
+            boolean ok = credentials.verify(login.username, login.password);
+            out.write(new byte[]{Socks5Codec.AUTH_VERSION, ok ? Socks5Codec.AUTH_SUCCESS : Socks5Codec.AUTH_FAILURE});
+            if (!ok) {
+                metrics.authFailures.increment();
+                if (Log.allow()) {
+                    Log.info("Authentication failed for user " + login.username);
+                }
+                return;
+            }
+            traffic = metrics.user(login.username);
+        }
+        setState(SocksSession.State.REQUEST);
+
+        Socks5Codec.Request request;
+        while ((request = parse(() -> Socks5Codec.parseRequest(protoBuf))) == null) {
+            fill(in, deadline);
+        }
+        if (request.version != Socks5Codec.VERSION
+                || (request.command != Socks5Codec.CMD_CONNECT && request.command != Socks5Codec.CMD_BIND)) {
+            sendReply(out, Socks5Codec.REP_COMMAND_NOT_SUPPORTED, null);
+            return;
+        }
+        if (!request.hasSupportedAddress()) {
+            sendReply(out, Socks5Codec.REP_ADDRESS_NOT_SUPPORTED, null);
+            return;
+        }
+        requestedAt = System.nanoTime();
+        deadline = deadlineAfter(config.connectTimeoutMillis);
+        AccessControl acl = proxy.getAccessControl();
+        if (request.address != null ? !acl.allowsAddress(request.address, request.port)
+                : !acl.allowsHost(request.host, request.port)) {
+            deny(out, request.address != null ? request.address.getHostAddress() : request.host, request.port);
+            return;
+        }
+        if (request.command == Socks5Codec.CMD_BIND) {
+            bind(out, request, deadline);
+            return;
+        }
+        if (proxy.getUpstreams().isEnabled()) {
+            connectUpstream(out, request, deadline);
+            return;
+        }
+        List<InetAddress> addresses;
+        if (request.address != null) {
+            addresses = List.of(request.address);
+        } else {
+            setState(SocksSession.State.RESOLVING);
+            try {
+                addresses = proxy.resolve(request.host);
+            } catch (IOException e) {
+                sendReply(out, Socks5Codec.REP_HOST_UNREACHABLE, null);
+                return;
+            }
+            AclRules rules = acl.rules();
+            List<InetAddress> permitted = new ArrayList<>(addresses.size());
+            for (InetAddress address : addresses) {
+                if (rules.checkAddress(address, request.port) != AclRules.Decision.DENY) {
+                    permitted.add(address);
+                }
+            }
+            if (permitted.isEmpty()) {
+                deny(out, request.host, request.port);
+                return;
+            }
+            addresses = permitted;
+        }
+
+        setState(SocksSession.State.CONNECTING);
+        byte failure = connect(addresses, request.port, deadline);
+        if (remote == null) {
+            metrics.connectFailures.increment();
+            sendReply(out, failure, null);
+            return;
+        }
+        metrics.connectLatency.record((System.nanoTime() - requestedAt) / 1000);
+        sendReply(out, Socks5Codec.REP_SUCCEEDED, (InetSocketAddress) remote.getLocalSocketAddress());
+        setState(SocksSession.State.RELAY);
+        relay();
+    }
+
+    private void bind(OutputStream out, Socks5Codec.Request request, long deadline) throws IOException {
+        try (ServerSocket server = new ServerSocket()) {
+            server.bind(new InetSocketAddress(client.getLocalAddress(), 0), 1);
+            setState(SocksSession.State.BINDING);
+            sendReply(out, Socks5Codec.REP_SUCCEEDED, (InetSocketAddress) server.getLocalSocketAddress());
+            while (remote == null) {
+                if (deadline != 0) {
+                    long remaining = deadline - Reactor.now();
+                    if (remaining <= 0) {
+                        throw new SocketTimeoutException("BIND timed out");
+                    }
+                    server.setSoTimeout((int) Math.min(Integer.MAX_VALUE, remaining));
+                }
+                Socket inbound;
+                try {
+                    inbound = server.accept();
+                } catch (SocketTimeoutException e) {
+                    metrics.sessionTimeouts.increment();
+                    sendReply(out, Socks5Codec.REP_HOST_UNREACHABLE, null);
+                    return;
+                }
+                if (request.matchesPeer(inbound.getInetAddress())) {
+                    remote = inbound;
+                } else {
+                    closeQuietly(inbound);
+                }
+            }
+        }
+        metrics.connectLatency.record((System.nanoTime() - requestedAt) / 1000);
+        sendReply(out, Socks5Codec.REP_SUCCEEDED, (InetSocketAddress) remote.getRemoteSocketAddress());
+        setState(SocksSession.State.RELAY);
+        relay();
+    }
+
+    private void connectUpstream(OutputStream out, Socks5Codec.Request request, long deadline) throws IOException {
+        setState(SocksSession.State.CONNECTING);
+        List<UpstreamPool.Upstream> candidates = proxy.getUpstreams().candidates();
+        for (int i = 0; i < candidates.size(); i++) {
+            UpstreamPool.Upstream u = candidates.get(i);
+            long remaining = deadline == 0 ? 0 : deadline - Reactor.now();
+            if (deadline != 0 && remaining <= 0) {
+                metrics.sessionTimeouts.increment();
+                break;
+            }
+            int timeout = (int) Math.min(Integer.MAX_VALUE, remaining / (candidates.size() - i));
+            Socket socket = new Socket();
+            Socks5Codec.Reply reply;
+            try {
+                socket.connect(u.address, timeout);
+            } catch (IOException e) {
+                closeQuietly(socket);
+                u.recordFailure();
+                continue;
+            }
+            try {
+                setState(SocksSession.State.UPSTREAM);
+                reply = upstreamHandshake(socket, request, deadline);
+            } catch (IOException e) {
+                closeQuietly(socket);
+                u.recordHandshakeFailure();
+                setState(SocksSession.State.CONNECTING);
+                continue;
+            }
+            u.recordSuccess();
+            if (reply.rep != Socks5Codec.REP_SUCCEEDED) {
+                closeQuietly(socket);
+                metrics.connectFailures.increment();
+                sendReply(out, reply.rep, null);
+                return;
+            }
+            synchronized (this) {
+                remote = socket;
+                upstream = u;
+                u.acquire();
+            }
+            metrics.connectLatency.record((System.nanoTime() - requestedAt) / 1000);
+            sendReply(out, Socks5Codec.REP_SUCCEEDED,
+                    reply.bind != null ? reply.bind : (InetSocketAddress) socket.getLocalSocketAddress());
+            if (upstreamEarly != null) {
+                out.write(upstreamEarly.array(), upstreamEarly.position(), upstreamEarly.remaining());
+                metrics.countRemoteToClient(traffic, upstreamEarly.remaining());
+                upstreamEarly = null;
+            }
+            setState(SocksSession.State.RELAY);
+            relay();
+            return;
+        }
+        metrics.connectFailures.increment();
+        sendReply(out, Socks5Codec.REP_GENERAL_FAILURE, null);
+    }
+
+    private Socks5Codec.Reply upstreamHandshake(Socket socket, Socks5Codec.Request request, long deadline) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        InputStream in = socket.getInputStream();
+        ByteBuffer buf = ByteBuffer.allocate(300);
+        buf.put(Socks5Codec.VERSION).put((byte) 1).put(Socks5Codec.METHOD_NO_AUTH);
+        out.write(buf.array(), 0, buf.position());
+        buf.clear();
+        while (buf.position() < 2) {
+            readUpstream(socket, in, buf, deadline);
+        }
+        if (buf.get(0) != Socks5Codec.VERSION || buf.get(1) != Socks5Codec.METHOD_NO_AUTH) {
+            throw new IOException("upstream rejected method");
+        }
+        buf.clear();
+        Socks5Codec.writeConnect(buf, request.address, request.host, request.port);
+        out.write(buf.array(), 0, buf.position());
+        buf.clear();
+        Socks5Codec.Reply reply;
+        while (true) {
+            readUpstream(socket, in, buf, deadline);
+            buf.flip();
+            reply = Socks5Codec.parseReply(buf);
+            if (reply != null) break;
+            buf.position(buf.limit()).limit(buf.capacity());
+        }
+        if (reply.version != Socks5Codec.VERSION) {
+            throw new IOException("bad upstream reply");
+        }
+        upstreamEarly = buf.hasRemaining() ? buf : null;
+        return reply;
+    }
+
+    private static void readUpstream(Socket socket, InputStream in, ByteBuffer buf, long deadline) throws IOException {
+        if (deadline != 0) {
+            long remaining = deadline - Reactor.now();
+            if (remaining <= 0) {
+                throw new SocketTimeoutException("upstream handshake timed out");
+            }
+            socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, remaining));
+        }
+        int n = in.read(buf.array(), buf.position(), buf.remaining());
+        if (n == -1) {
+            throw new EOFException("upstream closed");
+        }
+        buf.position(buf.position() + n);
+    }
+
+    private byte connect(List<InetAddress> addresses, int port, long deadline) {
+        AddressHealth health = proxy.getAddressHealth();
+        CircuitBreaker breaker = proxy.getBreaker();
+        List<InetAddress> candidates = health.connectOrder(addresses);
+        byte failure = Socks5Codec.REP_HOST_UNREACHABLE;
+        for (int i = 0; i < candidates.size(); i++) {
+            InetAddress address = candidates.get(i);
+            long remaining = deadline == 0 ? 0 : deadline - Reactor.now();
+            if (deadline != 0 && remaining <= 0) {
+                metrics.sessionTimeouts.increment();
+                break;
+            }
+            InetSocketAddress target = new InetSocketAddress(address, port);
+            if (!breaker.allow(target)) {
+                failure = Socks5Codec.REP_CONNECTION_REFUSED;
+                continue;
+            }
+            int timeout = (int) Math.min(Integer.MAX_VALUE, remaining / (candidates.size() - i));
+            Socket socket = new Socket();
+            long started = System.nanoTime();
+            try {
+                socket.connect(target, timeout);
+            } catch (IOException e) {
+                closeQuietly(socket);
+                health.recordFailure(address);
+                breaker.recordFailure(target);
+                failure = e instanceof SocketTimeoutException ? Socks5Codec.REP_HOST_UNREACHABLE : Socks5Codec.replyFor(e);
+                continue;
+            }
+            health.recordSuccess(address);
+            breaker.recordSuccess(target, (System.nanoTime() - started) / 1000);
+            remote = socket;
+            break;
+        }
+        return failure;
+    }
+
+    private void relay() throws IOException {
+        int idleTimeout = (int) Math.min(Integer.MAX_VALUE, config.idleTimeoutMillis);
+        client.setSoTimeout(idleTimeout);
+        remote.setSoTimeout(idleTimeout);
+        lastActivity = Reactor.now();
+        if (protoBuf.position() > 0) {
+            remote.getOutputStream().write(protoBuf.array(), 0, protoBuf.position());
+            metrics.countClientToRemote(traffic, protoBuf.position());
+            protoBuf.clear();
+        }
+        relaying = true;
+        proxy.getExecutor().execute(() -> pump(client, remote, true));
+        pump(remote, client, false);
+    }
+
+    private void pump(Socket from, Socket to, boolean upstream) {
+        byte[] buf = new byte[config.bufferSize];
+        try {
+            InputStream in = from.getInputStream();
+            OutputStream out = to.getOutputStream();
+            while (true) {
+                int allowance = awaitAllowance(buf.length);
+                int n;
+                try {
+                    n = in.read(buf, 0, allowance);
+                } catch (SocketTimeoutException e) {
+                    if (Reactor.now() - lastActivity < config.idleTimeoutMillis) continue;
+                    metrics.sessionTimeouts.increment();
+                    throw e;
+                }
+                if (n < 0) break;
+                lastActivity = Reactor.now();
+                throttle.consume(n);
+                out.write(buf, 0, n);
+                if (upstream) {
+                    metrics.countClientToRemote(traffic, n);
+                } else {
+                    if (!firstByteSeen) {
+                        firstByteSeen = true;
+                        metrics.timeToFirstByte.record((System.nanoTime() - requestedAt) / 1000);
+                    }
+                    metrics.countRemoteToClient(traffic, n);
+                }
+            }
+            to.shutdownOutput();
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        if (finishedDirections.incrementAndGet() == 2) {
+            close();
+        }
+    }
+
+    private int awaitAllowance(int max) throws IOException {
+        if (throttle.isUnlimited()) return max;
+        int allowance;
+        boolean counted = false;
+        while ((allowance = throttle.allowance()) == 0) {
+            if (!counted) {
+                metrics.throttled.increment();
+                counted = true;
+            }
+            try {
+                Thread.sleep(Math.max(1, throttle.millisUntilReady()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while throttled");
+            }
+        }
+        return Math.min(max, allowance);
+    }
+
+    private <T> T parse(ParseStep<T> step) throws IOException {
+        protoBuf.flip();
+        try {
+            return step.parse();
+        } finally {
+            protoBuf.compact();
+        }
+    }
+
+    private void fill(InputStream in, long deadline) throws IOException {
+        if (!protoBuf.hasRemaining()) {
+            throw new IOException("SOCKS request too large");
+        }
+        if (deadline != 0) {
+            long remaining = deadline - Reactor.now();
+            if (remaining <= 0) {
+                throw new SocketTimeoutException("handshake timed out");
+            }
+            client.setSoTimeout((int) Math.min(Integer.MAX_VALUE, remaining));
+        }
+        int n = in.read(protoBuf.array(), protoBuf.arrayOffset() + protoBuf.position(), protoBuf.remaining());
+        if (n < 0) {
+            throw new EOFException();
+        }
+        protoBuf.position(protoBuf.position() + n);
+    }
+
+    private void deny(OutputStream out, String target, int port) throws IOException {
+        metrics.aclDenied.increment();
+        if (Log.allow()) {
+            Log.info("ACL denied " + target + ":" + port + " for " + client.getInetAddress());
+        }
+        sendReply(out, Socks5Codec.REP_NOT_ALLOWED, null);
+    }
+
+    private void sendReply(OutputStream out, byte rep, InetSocketAddress bind) throws IOException {
+        ByteBuffer reply = ByteBuffer.allocate(32);
+        Socks5Codec.writeReply(reply, rep, bind);
+        out.write(reply.array(), 0, reply.position());
+    }
+
+    private void setState(SocksSession.State next) {
+        if (state == next) return;
+        metrics.transition(state, next);
+        state = next;
+    }
+
+    private static long deadlineAfter(long timeoutMillis) {
+        return timeoutMillis > 0 ? Reactor.now() + timeoutMillis : 0;
+    }
+
+    private void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        setState(SocksSession.State.CLOSED);
+        throttle.release();
+        closeQuietly(client);
+        Socket r;
+        UpstreamPool.Upstream u;
+        synchronized (this) {
+            r = remote;
+            u = upstream;
+        }
+        if (r != null) {
+            closeQuietly(r);
+        }
+        if (u != null) {
+            u.release();
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) { }
+    }
+
+    private interface ParseStep<T> {
+        T parse() throws IOException;
+    }
+}
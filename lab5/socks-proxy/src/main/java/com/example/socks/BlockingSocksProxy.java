@@ -0,0 +1,236 @@
+package com.example.socks;
+
+import org.xbill.DNS.AAAARecord;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.CNAMERecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.ExtendedResolver;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Resolver;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.SimpleResolver;
+import org.xbill.DNS.Type;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class BlockingSocksProxy {
+    private static final long MAX_DNS_TTL_SECONDS = 24 * 60 * 60;
+
+    private final ProxyConfig config;
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor;
+    private final DnsCache dnsCache;
+    private final AddressHealth addressHealth;
+    private final Resolver resolver;
+    private final CredentialStore credentials;
+    private final BandwidthLimiter limiter;
+    private final AccessControl acl;
+    private final UpstreamPool upstreams;
+    private final CircuitBreaker breaker;
+    private final Metrics metrics = new Metrics();
+    private volatile boolean draining;
+
+    public BlockingSocksProxy(ProxyConfig config) throws IOException {
+        this.config = config;
+        if (config.inheritListener) {
+            this.serverSocket = Drain.openListener(config).socket();
+        } else {
+            this.serverSocket = new ServerSocket();
+            if (config.reusePort) {
+                serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            serverSocket.bind(new InetSocketAddress(config.port), 1024);
+        }
+
+        this.executor = newExecutor();
+        this.dnsCache = new DnsCache(config.dnsCacheSize, config.dnsNegativeTtlMillis);
+        this.addressHealth = new AddressHealth(config.addressPenaltyMillis);
+        this.limiter = new BandwidthLimiter(config);
+        this.acl = new AccessControl(config.aclFile);
+        this.upstreams = new UpstreamPool(config);
+        this.breaker = new CircuitBreaker(config);
+        this.credentials = config.authFile != null ? new CredentialStore(config.authFile, config.authWorkers, config.authQueue) : null;
+        List<Resolver> upstreams = new ArrayList<>();
+        for (InetSocketAddress server : config.dnsServers) {
+            upstreams.add(new SimpleResolver(server));
+        }
+        ExtendedResolver extended = new ExtendedResolver(upstreams);
+        extended.setTimeout(Duration.ofMillis(config.dnsTimeoutMillis));
+        extended.setRetries(config.dnsAttempts);
+        this.resolver = extended;
+
+        Log.setRate(config.logRate);
+        if (config.metricsPort > 0) {
+            new MetricsServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), config.metricsPort), this::renderMetrics).start();
+            System.out.println("Metrics at http://127.0.0.1:" + config.metricsPort + "/metrics");
+        }
+
+        Drain.install(this::stopAccepting, metrics, config.drainTimeoutMillis);
+        System.out.println("SOCKS5 proxy listening on " + serverSocket.getLocalSocketAddress() + " with a thread per session");
+    }
+
+    public void start() throws IOException {
+        while (true) {
+            Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (SocketException e) {
+                if (draining) return;
+                throw e;
+            }
+            if (Log.allow()) {
+                Log.info("Accepted client " + client.getRemoteSocketAddress());
+            }
+            executor.execute(new BlockingSession(this, client));
+        }
+    }
+
+    void stopAccepting() {
+        draining = true;
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) { }
+    }
+
+    ProxyConfig getConfig() {
+        return config;
+    }
+
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    AddressHealth getAddressHealth() {
+        return addressHealth;
+    }
+
+    CredentialStore getCredentials() {
+        return credentials;
+    }
+
+    AccessControl getAccessControl() {
+        return acl;
+    }
+
+    CircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    UpstreamPool getUpstreams() {
+        return upstreams;
+    }
+
+    BandwidthLimiter getLimiter() {
+        return limiter;
+    }
+
+    ExecutorService getExecutor() {
+        return executor;
+    }
+
+    List<InetAddress> resolve(String host) throws IOException {
+        DnsCache.Entry cached = dnsCache.get(host);
+        if (cached != null) {
+            if (cached.isNegative()) {
+                throw new UnknownHostException(host);
+            }
+            return cached.getAddresses();
+        }
+        Name name = Name.fromString(DnsCache.normalize(host) + ".");
+        long startedAt = System.nanoTime();
+        CompletableFuture<Message> a = query(name, Type.A);
+        CompletableFuture<Message> aaaa = query(name, Type.AAAA);
+        List<InetAddress> v6 = new ArrayList<>();
+        List<InetAddress> v4 = new ArrayList<>();
+        long ttl = MAX_DNS_TTL_SECONDS;
+        boolean failed = false;
+        for (CompletableFuture<Message> future : List.of(aaaa, a)) {
+            Message response;
+            try {
+                response = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while resolving " + host);
+            } catch (ExecutionException e) {
+                metrics.dnsTimeouts.increment();
+                failed = true;
+                continue;
+            }
+            int rcode = response.getRcode();
+            if (rcode != Rcode.NOERROR && rcode != Rcode.NXDOMAIN) {
+                failed = true;
+            }
+            for (org.xbill.DNS.Record r : response.getSectionArray(Section.ANSWER)) {
+                if (r instanceof ARecord || r instanceof AAAARecord || r instanceof CNAMERecord) {
+                    ttl = Math.min(ttl, r.getTTL());
+                }
+                if (r instanceof ARecord) {
+                    v4.add(((ARecord) r).getAddress());
+                } else if (r instanceof AAAARecord) {
+                    v6.add(((AAAARecord) r).getAddress());
+                }
+            }
+        }
+        metrics.dnsRtt.record((System.nanoTime() - startedAt) / 1000);
+        List<InetAddress> addresses = new ArrayList<>(v6);
+        addresses.addAll(v4);
+        if (!addresses.isEmpty()) {
+            dnsCache.putAddresses(host, addresses, ttl);
+            return addresses;
+        }
+        if (!failed) {
+            dnsCache.putNegative(host);
+        }
+        throw new UnknownHostException(host);
+    }
+
+    public String renderMetrics() {
+        StringBuilder out = new StringBuilder(4096);
+        metrics.appendTo(out);
+        Metrics.line(out, "socks_dns_cache_entries", dnsCache.size());
+        Metrics.line(out, "socks_dns_cache_hits_total", dnsCache.getHits());
+        Metrics.line(out, "socks_dns_cache_misses_total", dnsCache.getMisses());
+        Metrics.line(out, "socks_suspect_addresses", addressHealth.size());
+        breaker.appendTo(out);
+        Metrics.line(out, "socks_rate_limited_clients", limiter.trackedClients());
+        upstreams.appendTo(out);
+        Metrics.line(out, "socks_log_suppressed_total", Log.getSuppressed());
+        Metrics.line(out, "socks_draining", draining ? 1 : 0);
+        return out.toString();
+    }
+
+    private CompletableFuture<Message> query(Name name, int type) {
+        metrics.dnsQueries.increment();
+        org.xbill.DNS.Record rec = org.xbill.DNS.Record.newRecord(name, type, DClass.IN);
+        return resolver.sendAsync(Message.newQuery(rec)).toCompletableFuture();
+    }
+
+    private static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads are not available, falling back to platform threads");
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "session");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+}
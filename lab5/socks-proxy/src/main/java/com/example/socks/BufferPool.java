@@ -0,0 +1,99 @@
+package com.example.socks;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+public class BufferPool {
+    private final Reactor reactor;
+    private final int bufferSize;
+    private final int buffersPerSlab;
+    private final int maxBuffers;
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    private final ArrayDeque<SocksSession> waiters = new ArrayDeque<>();
+
+    private volatile int allocated;
+    private volatile int inUse;
+    private volatile long exhausted;
+
+    public BufferPool(Reactor reactor, int bufferSize, int buffersPerSlab, int maxBuffers) {
+        this.reactor = reactor;
+        this.bufferSize = bufferSize;
+        this.buffersPerSlab = buffersPerSlab;
+        this.maxBuffers = maxBuffers;
+    }
+
+    ByteBuffer acquire() {
+        ByteBuffer buf = free.poll();
+        if (buf == null) {
+            if (allocated >= maxBuffers) {
+                exhausted++;
+                return null;
+            }
+            allocateSlab();
+            buf = free.poll();
+        }
+        inUse++;
+        return buf;
+    }
+
+    void release(ByteBuffer buf) {
+        buf.clear();
+        free.push(buf);
+        inUse--;
+        SocksSession waiter;
+        while ((waiter = waiters.poll()) != null) {
+            waiter.bufferQueued = false;
+            if (!waiter.isClosed()) {
+                SocksSession woken = waiter;
+                reactor.execute(() -> {
+                    if (!woken.isClosed()) {
+                        woken.onBufferAvailable();
+                    }
+                });
+                break;
+            }
+        }
+    }
+
+    void await(SocksSession session) {
+        if (!session.bufferQueued) {
+            session.bufferQueued = true;
+            waiters.add(session);
+        }
+    }
+
+    private void allocateSlab() {
+        int count = Math.min(buffersPerSlab, maxBuffers - allocated);
+        ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * count);
+        for (int i = 0; i < count; i++) {
+            slab.limit((i + 1) * bufferSize);
+            slab.position(i * bufferSize);
+            free.add(slab.slice());
+        }
+        allocated += count;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getMaxBuffers() {
+        return maxBuffers;
+    }
+
+    public int getAllocated() {
+        return allocated;
+    }
+
+    public int getInUse() {
+        return inUse;
+    }
+
+    public int getWaiting() {
+        return waiters.size();
+    }
+
+    public long getExhausted() {
+        return exhausted;
+    }
+}
@@ -0,0 +1,164 @@
+package com.example.socks;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class CircuitBreaker {
+    private static final int MAX_ENTRIES = 100_000;
+    private static final int BUCKETS = 10;
+    private static final long BUCKET_MILLIS = 1000;
+    private static final long MAX_COUNT = 0xffff;
+    private static final long CLOSED = Long.MIN_VALUE;
+
+    private final long openMillis;
+    private final int minCalls;
+    private final int failurePercent;
+    private final long slowMicros;
+    private final ConcurrentHashMap<InetSocketAddress, Window> windows = new ConcurrentHashMap<>();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder opened = new LongAdder();
+
+    public CircuitBreaker(ProxyConfig config) {
+        this.openMillis = config.breakerOpenMillis;
+        this.minCalls = config.breakerMinCalls;
+        this.failurePercent = config.breakerFailurePercent;
+        this.slowMicros = config.breakerSlowMillis * 1000;
+    }
+
+    public boolean allow(InetSocketAddress address) {
+        if (openMillis <= 0) return true;
+        Window w = windows.get(address);
+        if (w == null || w.allow(Reactor.now())) return true;
+        rejected.increment();
+        return false;
+    }
+
+    public void recordSuccess(InetSocketAddress address, long latencyMicros) {
+        if (slowMicros > 0 && latencyMicros >= slowMicros) {
+            recordFailure(address);
+            return;
+        }
+        Window w = window(address);
+        if (w != null) {
+            w.onSuccess(Reactor.now());
+        }
+    }
+
+    public void recordFailure(InetSocketAddress address) {
+        Window w = window(address);
+        if (w != null) {
+            w.onFailure(Reactor.now());
+        }
+    }
+
+    void appendTo(StringBuilder out) {
+        long open = 0;
+        for (Window w : windows.values()) {
+            if (w.gate.get() != CLOSED) open++;
+        }
+        Metrics.line(out, "socks_breaker_tracked", windows.size());
+        Metrics.line(out, "socks_breaker_open", open);
+        Metrics.line(out, "socks_breaker_opened_total", opened.sum());
+        Metrics.line(out, "socks_breaker_rejected_total", rejected.sum());
+    }
+
+    private Window window(InetSocketAddress address) {
+        if (openMillis <= 0) return null;
+        Window w = windows.get(address);
+        if (w != null) return w;
+        if (windows.size() >= MAX_ENTRIES) {
+            long now = Reactor.now();
+            windows.values().removeIf(x -> x.isIdle(now));
+            if (windows.size() >= MAX_ENTRIES) return null;
+        }
+        return windows.computeIfAbsent(address, Window::new);
+    }
+
+    private static long bucketStamp(long now) {
+        return (now / BUCKET_MILLIS) & 0xffffffffL;
+    }
+
+    private final class Window {
+        private final InetSocketAddress address;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong gate = new AtomicLong(CLOSED);
+        private volatile long touched;
+
+        private Window(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        private boolean allow(long now) {
+            long retryAt = gate.get();
+            if (retryAt == CLOSED) return true;
+            if (now - retryAt < 0) return false;
+            return gate.compareAndSet(retryAt, now + openMillis);
+        }
+
+        private void onSuccess(long now) {
+            record(now, false);
+            if (gate.get() != CLOSED && gate.getAndSet(CLOSED) != CLOSED) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    buckets.set(i, 0);
+                }
+                if (Log.allow()) {
+                    Log.info("Circuit closed for " + address);
+                }
+            }
+        }
+
+        private void onFailure(long now) {
+            record(now, true);
+            long retryAt = gate.get();
+            if (retryAt != CLOSED) {
+                gate.compareAndSet(retryAt, now + openMillis);
+                return;
+            }
+            long calls = 0;
+            long failures = 0;
+            long stamp = bucketStamp(now);
+            for (int i = 0; i < BUCKETS; i++) {
+                long b = buckets.get(i);
+                if (((stamp - (b >>> 32)) & 0xffffffffL) < BUCKETS) {
+                    calls += (b >>> 16) & MAX_COUNT;
+                    failures += b & MAX_COUNT;
+                }
+            }
+            if (calls >= minCalls && failures * 100 >= calls * failurePercent
+                    && gate.compareAndSet(CLOSED, now + openMillis)) {
+                opened.increment();
+                if (Log.allow()) {
+                    Log.info("Circuit open for " + address + ": " + failures + " of " + calls
+                            + " connects failed, retry in " + openMillis + " ms");
+                }
+            }
+        }
+
+        private void record(long now, boolean failed) {
+            touched = now;
+            long stamp = bucketStamp(now);
+            int i = (int) (stamp % BUCKETS);
+            while (true) {
+                long b = buckets.get(i);
+                long calls = 0;
+                long failures = 0;
+                if (b >>> 32 == stamp) {
+                    calls = (b >>> 16) & MAX_COUNT;
+                    failures = b & MAX_COUNT;
+                }
+                calls = Math.min(MAX_COUNT, calls + 1);
+                if (failed) {
+                    failures = Math.min(MAX_COUNT, failures + 1);
+                }
+                if (buckets.compareAndSet(i, b, stamp << 32 | calls << 16 | failures)) return;
+            }
+        }
+
+        private boolean isIdle(long now) {
+            return gate.get() == CLOSED && now - touched > BUCKETS * BUCKET_MILLIS;
+        }
+    }
+}
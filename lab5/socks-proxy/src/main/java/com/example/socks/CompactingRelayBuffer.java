@@ -0,0 +1,84 @@
+package com.example.socks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+class CompactingRelayBuffer extends RelayBuffer {
+    private ByteBuffer buf;
+
+    CompactingRelayBuffer(BufferPool pool) {
+        super(pool);
+    }
+
+    @Override
+    int readFrom(SocketChannel src, int maxBytes) throws IOException {
+        if (buf == null) {
+            buf = pool.acquire();
+            if (buf == null) return NO_BUFFER;
+        }
+        if (maxBytes >= buf.remaining()) {
+            return src.read(buf);
+        }
+        int limit = buf.limit();
+        buf.limit(buf.position() + maxBytes);
+        try {
+            return src.read(buf);
+        } finally {
+            buf.limit(limit);
+        }
+    }
+
+    @Override
+    boolean writeTo(SocketChannel dst) {
+        if (buf == null) return false;
+        buf.flip();
+        try {
+            while (buf.hasRemaining()) {
+                int n = dst.write(buf);
+                if (n == 0) break;
+            }
+        } catch (IOException e) {
+            return true;
+        } finally {
+            buf.compact();
+        }
+        return false;
+    }
+
+    @Override
+    boolean put(ByteBuffer src) {
+        if (buf == null) {
+            buf = pool.acquire();
+            if (buf == null) return false;
+        }
+        if (buf.remaining() < src.remaining()) return false;
+        buf.put(src);
+        return true;
+    }
+
+    @Override
+    boolean hasPending() {
+        return buf != null && buf.position() > 0;
+    }
+
+    @Override
+    boolean hasSpace() {
+        return buf == null || buf.hasRemaining();
+    }
+
+    @Override
+    void recycle() {
+        if (buf != null && buf.position() == 0) {
+            release();
+        }
+    }
+
+    @Override
+    void release() {
+        if (buf != null) {
+            pool.release(buf);
+            buf = null;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.example.socks;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+public class CredentialStore {
+    static final int DEFAULT_ITERATIONS = 100_000;
+    private static final String SCHEME = "pbkdf2-sha256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final long RELOAD_CHECK_MS = 1000;
+
+    private final Path file;
+    private final ThreadPoolExecutor workers;
+    private final Credential dummy;
+    private volatile Map<String, Credential> credentials = Map.of();
+    private final ConcurrentHashMap<String, byte[]> verified = new ConcurrentHashMap<>();
+    private long loadedModified = -1;
+    private long loadedSize;
+
+    public CredentialStore(Path file, int workerThreads, int queueCapacity) throws IOException {
+        this.file = file;
+        this.dummy = new Credential(DEFAULT_ITERATIONS, new byte[SALT_BYTES], new byte[HASH_BITS / 8]);
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+            Thread t = new Thread(r, "auth-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        reload();
+        System.out.println("Loaded " + credentials.size() + " users from " + file);
+        Thread reloader = new Thread(this::watch, "credentials-reloader");
+        reloader.setDaemon(true);
+        reloader.start();
+    }
+
+    public int size() {
+        return credentials.size();
+    }
+
+    void verify(String user, byte[] password, Reactor reactor, Consumer<Boolean> callback) {
+        Credential credential = credentials.get(user);
+        if (credential != null && matchesVerified(user, credential, password)) {
+            callback.accept(true);
+            return;
+        }
+        try {
+            workers.execute(() -> {
+                boolean ok = verify(user, password);
+                reactor.execute(() -> callback.accept(ok));
+            });
+        } catch (RejectedExecutionException e) {
+            if (Log.allow()) {
+                Log.info("Auth queue full, rejecting user " + user);
+            }
+            callback.accept(false);
+        }
+    }
+
+    boolean verify(String user, byte[] password) {
+        Credential credential = credentials.get(user);
+        if (credential == null) {
+            derive(password, dummy);
+            return false;
+        }
+        if (matchesVerified(user, credential, password)) {
+            return true;
+        }
+        if (!MessageDigest.isEqual(credential.hash, derive(password, credential))) {
+            return false;
+        }
+        verified.put(user, quickDigest(credential.salt, password));
+        return true;
+    }
+
+    static String hashLine(String user, String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        new SecureRandom().nextBytes(salt);
+        Credential credential = new Credential(DEFAULT_ITERATIONS, salt, null);
+        byte[] hash = derive(password.getBytes(StandardCharsets.UTF_8), credential);
+        Base64.Encoder b64 = Base64.getEncoder();
+        return user + ":" + SCHEME + ":" + DEFAULT_ITERATIONS + ":" + b64.encodeToString(salt) + ":" + b64.encodeToString(hash);
+    }
+
+    private boolean matchesVerified(String user, Credential credential, byte[] password) {
+        byte[] digest = verified.get(user);
+        return digest != null && MessageDigest.isEqual(digest, quickDigest(credential.salt, password));
+    }
+
+    private void watch() {
+        while (true) {
+            try {
+                Thread.sleep(RELOAD_CHECK_MS);
+                reload();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                if (Log.allow()) {
+                    Log.info("Keeping previous credentials, reload of " + file + " failed: " + e);
+                }
+            }
+        }
+    }
+
+    private void reload() throws IOException {
+        long modified = Files.getLastModifiedTime(file).toMillis();
+        long size = Files.size(file);
+        if (modified == loadedModified && size == loadedSize) return;
+        Map<String, Credential> loaded = new HashMap<>();
+        int lineNo = 0;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            lineNo++;
+            String s = line.trim();
+            if (s.isEmpty() || s.startsWith("#")) continue;
+            String[] parts = s.split(":");
+            if (parts.length != 5 || !parts[1].equals(SCHEME)) {
+                throw new IllegalArgumentException(file + ":" + lineNo + ": expected user:" + SCHEME + ":iterations:salt:hash");
+            }
+            Base64.Decoder b64 = Base64.getDecoder();
+            loaded.put(parts[0], new Credential(Integer.parseInt(parts[2]), b64.decode(parts[3]), b64.decode(parts[4])));
+        }
+        boolean initial = loadedModified == -1;
+        credentials = Map.copyOf(loaded);
+        verified.clear();
+        loadedModified = modified;
+        loadedSize = size;
+        if (!initial && Log.allow()) {
+            Log.info("Reloaded " + loaded.size() + " users from " + file);
+        }
+    }
+
+    private static byte[] derive(byte[] password, Credential credential) {
+        CharBuffer chars = StandardCharsets.UTF_8.decode(ByteBuffer.wrap(password));
+        char[] pw = new char[chars.remaining()];
+        chars.get(pw);
+        PBEKeySpec spec = new PBEKeySpec(pw, credential.salt, credential.iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            spec.clearPassword();
+            Arrays.fill(pw, '\0');
+        }
+    }
+
+    private static byte[] quickDigest(byte[] salt, byte[] password) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(salt);
+            return sha.digest(password);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Credential {
+        private final int iterations;
+        private final byte[] salt;
+        private final byte[] hash;
+
+        private Credential(int iterations, byte[] salt, byte[] hash) {
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+        }
+    }
+}
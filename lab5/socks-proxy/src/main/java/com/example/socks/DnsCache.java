@@ -0,0 +1,87 @@
+package com.example.socks;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+public class DnsCache {
+    private final int maxEntries;
+    private final long negativeTtlMillis;
+    private final Map<String, Entry> entries;
+
+    private long hits;
+    private long misses;
+
+    public DnsCache(int maxEntries, long negativeTtlMillis) {
+        this.maxEntries = maxEntries;
+        this.negativeTtlMillis = negativeTtlMillis;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, DnsCache.Entry> eldest) {
+                return size() > DnsCache.this.maxEntries;
+            }
+        };
+    }
+
+    public synchronized Entry get(String host) {
+        String key = normalize(host);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiresAt - System.nanoTime() <= 0) {
+            entries.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return entry;
+    }
+
+    public synchronized void putAddresses(String host, List<InetAddress> addresses, long ttlSeconds) {
+        if (ttlSeconds <= 0 || addresses.isEmpty()) return;
+        entries.put(normalize(host), new Entry(List.copyOf(addresses), System.nanoTime() + ttlSeconds * 1_000_000_000L));
+    }
+
+    public synchronized void putNegative(String host) {
+        if (negativeTtlMillis <= 0) return;
+        entries.put(normalize(host), new Entry(null, System.nanoTime() + negativeTtlMillis * 1_000_000L));
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    static String normalize(String host) {
+        String h = host.endsWith(".") ? host.substring(0, host.length() - 1) : host;
+        return h.toLowerCase(Locale.ROOT);
+    }
+
+    public static final class Entry {
+        private final List<InetAddress> addresses;
+        private final long expiresAt;
+
+        private Entry(List<InetAddress> addresses, long expiresAt) {
+            this.addresses = addresses;
+            this.expiresAt = expiresAt;
+        }
+
+        public List<InetAddress> getAddresses() {
+            return addresses;
+        }
+
+        public boolean isNegative() {
+            return addresses == null;
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package com.example.socks;
+
+import org.xbill.DNS.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class DnsResolver {
+    private static final int DNS_BUFFER_SIZE = 2048;
+    private static final long MAX_DNS_TTL_SECONDS = 24 * 60 * 60;
+    private static final long MAX_SRTT_MS = 60_000;
+
+    private final DatagramChannel channel;
+    private final TimerWheel timers;
+    private final DnsCache cache;
+    private final Metrics metrics;
+    private final List<Upstream> upstreams = new ArrayList<>();
+    private final long timeoutMillis;
+    private final int maxAttempts;
+    private final long resolutionDelayMillis;
+    private final ByteBuffer receiveBuf = ByteBuffer.allocate(DNS_BUFFER_SIZE);
+    private final Map<String, Lookup> inflight = new HashMap<>();
+    private final Map<Integer, Query> byId = new HashMap<>();
+    private final Random random = new Random();
+
+    public DnsResolver(Selector selector, TimerWheel timers, DnsCache cache, Metrics metrics, ProxyConfig config)
+            throws IOException {
+        this.timers = timers;
+        this.cache = cache;
+        this.metrics = metrics;
+        this.timeoutMillis = config.dnsTimeoutMillis;
+        this.maxAttempts = config.dnsAttempts;
+        this.resolutionDelayMillis = config.dnsResolutionDelayMillis;
+        for (InetSocketAddress address : config.dnsServers) {
+            upstreams.add(new Upstream(address));
+        }
+        this.channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    interface Waiter {
+        void onResolved(List<InetAddress> addresses) throws IOException;
+
+        void onResolveFailed() throws IOException;
+
+        void close();
+    }
+
+    Handle resolve(Waiter waiter, String host) throws IOException {
+        DnsCache.Entry cached = cache.get(host);
+        if (cached != null) {
+            if (cached.isNegative()) {
+                waiter.onResolveFailed();
+            } else {
+                waiter.onResolved(cached.getAddresses());
+            }
+            return null;
+        }
+        String key = DnsCache.normalize(host);
+        Lookup lookup = inflight.get(key);
+        if (lookup == null) {
+            Name name;
+            try {
+                name = Name.fromString(key + ".");
+            } catch (TextParseException e) {
+                waiter.onResolveFailed();
+                return null;
+            }
+            lookup = new Lookup(key, name);
+            inflight.put(key, lookup);
+            startQuery(lookup.a);
+            startQuery(lookup.aaaa);
+        }
+        if (lookup.completed) {
+            List<InetAddress> addresses = lookup.addresses();
+            if (addresses.isEmpty()) {
+                waiter.onResolveFailed();
+            } else {
+                waiter.onResolved(addresses);
+            }
+            return null;
+        }
+        Handle handle = new Handle(waiter, lookup);
+        lookup.append(handle);
+        return handle;
+    }
+
+    void handleRead() throws IOException {
+        while (true) {
+            receiveBuf.clear();
+            SocketAddress from = channel.receive(receiveBuf);
+            if (from == null) return;
+            receiveBuf.flip();
+            byte[] data = new byte[receiveBuf.remaining()];
+            receiveBuf.get(data);
+            try {
+                handleResponse(new Message(data), from);
+            } catch (IOException e) {
+                if (Log.allow()) {
+                    Log.info("Dropping malformed DNS response from " + from + ": " + e);
+                }
+            }
+        }
+    }
+
+    private void handleResponse(Message response, SocketAddress from) {
+        Query query = byId.get(response.getHeader().getID());
+        if (query == null || !query.upstream.address.equals(from)) {
+            return;
+        }
+        byId.remove(query.id);
+        query.timeout.cancel();
+        long rttNanos = System.nanoTime() - query.sentAt;
+        query.upstream.onAnswer(rttNanos / 1_000_000);
+        metrics.dnsRtt.record(rttNanos / 1000);
+
+        Lookup lookup = query.lookup;
+        List<InetAddress> target = query.type == Type.A ? lookup.v4 : lookup.v6;
+        for (org.xbill.DNS.Record r : response.getSectionArray(Section.ANSWER)) {
+            if (r instanceof ARecord || r instanceof AAAARecord || r instanceof CNAMERecord) {
+                lookup.ttl = Math.min(lookup.ttl, r.getTTL());
+            }
+            if (query.type == Type.A && r instanceof ARecord) {
+                target.add(((ARecord) r).getAddress());
+            } else if (query.type == Type.AAAA && r instanceof AAAARecord) {
+                target.add(((AAAARecord) r).getAddress());
+            }
+        }
+        int rcode = response.getRcode();
+        if (rcode != Rcode.NOERROR && rcode != Rcode.NXDOMAIN) {
+            lookup.failed = true;
+        }
+        query.done = true;
+        onQueryDone(lookup, query);
+    }
+
+    private void onQueryDone(Lookup lookup, Query query) {
+        if (lookup.a.done && lookup.aaaa.done) {
+            if (inflight.get(lookup.host) == lookup) {
+                inflight.remove(lookup.host);
+            }
+            if (lookup.resolutionTimer != null) {
+                lookup.resolutionTimer.cancel();
+            }
+            List<InetAddress> addresses = lookup.addresses();
+            if (!addresses.isEmpty()) {
+                cache.putAddresses(lookup.host, addresses, lookup.ttl);
+            } else if (!lookup.failed) {
+                cache.putNegative(lookup.host);
+            }
+            complete(lookup);
+        } else if (!lookup.completed) {
+            if (query.type == Type.AAAA && !lookup.v6.isEmpty()) {
+                complete(lookup);
+            } else if (query.type == Type.A && !lookup.v4.isEmpty() && lookup.resolutionTimer == null) {
+                lookup.resolutionTimer = timers.schedule(resolutionDelayMillis, () -> complete(lookup));
+            }
+        }
+    }
+
+    private void complete(Lookup lookup) {
+        if (lookup.completed) return;
+        lookup.completed = true;
+        List<InetAddress> addresses = lookup.addresses();
+        for (Handle h = lookup.head; h != null; h = h.next) {
+            Waiter waiter = h.waiter;
+            if (waiter == null) continue;
+            h.waiter = null;
+            try {
+                if (addresses.isEmpty()) {
+                    waiter.onResolveFailed();
+                } else {
+                    waiter.onResolved(addresses);
+                }
+            } catch (IOException e) {
+                if (Log.allow()) {
+                    Log.info("Resolved session failed: " + e);
+                }
+                waiter.close();
+            }
+        }
+        lookup.head = null;
+        lookup.tail = null;
+    }
+
+    private void onTimeout(Query query) {
+        byId.remove(query.id);
+        query.upstream.onTimeout(timeoutMillis);
+        metrics.dnsTimeouts.increment();
+        query.attempt++;
+        if (query.attempt >= maxAttempts) {
+            if (Log.allow()) {
+                Log.info("DNS " + Type.string(query.type) + " lookup for " + query.lookup.host
+                        + " timed out after " + maxAttempts + " attempts");
+            }
+            query.done = true;
+            query.lookup.failed = true;
+            onQueryDone(query.lookup, query);
+            return;
+        }
+        try {
+            sendQuery(query);
+        } catch (IOException e) {
+            if (Log.allow()) {
+                Log.info("DNS retry for " + query.lookup.host + " failed: " + e);
+            }
+            query.done = true;
+            query.lookup.failed = true;
+            onQueryDone(query.lookup, query);
+        }
+    }
+
+    private void startQuery(Query query) {
+        try {
+            sendQuery(query);
+        } catch (IOException e) {
+            if (Log.allow()) {
+                Log.info("DNS " + Type.string(query.type) + " query for " + query.lookup.host + " failed, will retry: " + e);
+            }
+        }
+    }
+
+    private void sendQuery(Query query) throws IOException {
+        org.xbill.DNS.Record rec = org.xbill.DNS.Record.newRecord(query.lookup.name, query.type, DClass.IN);
+        Message message = Message.newQuery(rec);
+        int id;
+        do {
+            id = random.nextInt(0xFFFF);
+        } while (byId.containsKey(id));
+        message.getHeader().setID(id);
+        query.id = id;
+        query.upstream = pickUpstream(query.upstream);
+        query.sentAt = System.nanoTime();
+        byId.put(id, query);
+        long delay = timeoutMillis << Math.min(query.attempt, 16);
+        if (query.timeout == null) {
+            query.timeout = timers.schedule(delay, () -> onTimeout(query));
+        } else {
+            timers.reschedule(query.timeout, delay);
+        }
+        channel.send(ByteBuffer.wrap(message.toWire()), query.upstream.address);
+        metrics.dnsQueries.increment();
+        if (Log.allow()) {
+            Log.info("DNS " + Type.string(query.type) + " query for " + query.lookup.host
+                    + " id=" + id + " via " + query.upstream.address);
+        }
+    }
+
+    private Upstream pickUpstream(Upstream previous) {
+        Upstream best = null;
+        for (Upstream u : upstreams) {
+            if (u == previous && upstreams.size() > 1) continue;
+            if (best == null || u.srtt < best.srtt) {
+                best = u;
+            }
+        }
+        return best;
+    }
+
+    private static final class Upstream {
+        private final InetSocketAddress address;
+        private long srtt;
+
+        private Upstream(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        private void onAnswer(long rtt) {
+            srtt = srtt == 0 ? Math.max(1, rtt) : (7 * srtt + rtt) / 8;
+        }
+
+        private void onTimeout(long timeout) {
+            srtt = Math.min(MAX_SRTT_MS, Math.max(srtt * 2, timeout));
+        }
+    }
+
+    private static final class Lookup {
+        private final String host;
+        private final Name name;
+        private final Query a = new Query(this, Type.A);
+        private final Query aaaa = new Query(this, Type.AAAA);
+        private Handle head;
+        private Handle tail;
+        private final List<InetAddress> v4 = new ArrayList<>();
+        private final List<InetAddress> v6 = new ArrayList<>();
+        private long ttl = MAX_DNS_TTL_SECONDS;
+        private boolean failed;
+        private boolean completed;
+        private TimerWheel.Timeout resolutionTimer;
+
+        private Lookup(String host, Name name) {
+            this.host = host;
+            this.name = name;
+        }
+
+        private void append(Handle handle) {
+            handle.prev = tail;
+            if (tail != null) {
+                tail.next = handle;
+            } else {
+                head = handle;
+            }
+            tail = handle;
+        }
+
+        private void unlink(Handle handle) {
+            if (handle.prev != null) {
+                handle.prev.next = handle.next;
+            } else {
+                head = handle.next;
+            }
+            if (handle.next != null) {
+                handle.next.prev = handle.prev;
+            } else {
+                tail = handle.prev;
+            }
+            handle.prev = null;
+            handle.next = null;
+        }
+
+        private List<InetAddress> addresses() {
+            List<InetAddress> all = new ArrayList<>(v6.size() + v4.size());
+            all.addAll(v6);
+            all.addAll(v4);
+            return all;
+        }
+    }
+
+    static final class Handle {
+        private final Lookup lookup;
+        private Waiter waiter;
+        private Handle prev;
+        private Handle next;
+
+        private Handle(Waiter waiter, Lookup lookup) {
+            this.waiter = waiter;
+            this.lookup = lookup;
+        }
+
+        void cancel() {
+            if (waiter == null) return;
+            waiter = null;
+            if (!lookup.completed) {
+                lookup.unlink(this);
+            }
+        }
+    }
+
+    private static final class Query {
+        private final Lookup lookup;
+        private final int type;
+        private int id;
+        private int attempt;
+        private long sentAt;
+        private boolean done;
+        private Upstream upstream;
+        private TimerWheel.Timeout timeout;
+
+        private Query(Lookup lookup, int type) {
+            this.lookup = lookup;
+            this.type = type;
+        }
+    }
+}
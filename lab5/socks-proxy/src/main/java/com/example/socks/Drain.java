@@ -0,0 +1,60 @@
+package com.example.socks;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.Channel;
+import java.nio.channels.ServerSocketChannel;
+
+final class Drain {
+    private static final long PROGRESS_INTERVAL_MS = 1000;
+
+    private Drain() {
+    }
+
+    static void install(Runnable stopAccepting, Metrics metrics, long timeoutMillis) {
+        Thread hook = new Thread(() -> run(stopAccepting, metrics, timeoutMillis), "drain");
+        Runtime.getRuntime().addShutdownHook(hook);
+    }
+
+    static ServerSocketChannel openListener(ProxyConfig config) throws IOException {
+        if (config.inheritListener) {
+            Channel inherited = System.inheritedChannel();
+            if (!(inherited instanceof ServerSocketChannel)) {
+                throw new IOException("inherit-listener is set but stdin is not a listening socket");
+            }
+            return (ServerSocketChannel) inherited;
+        }
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        if (config.reusePort) {
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        channel.bind(new InetSocketAddress(config.port), 1024);
+        return channel;
+    }
+
+    private static void run(Runnable stopAccepting, Metrics metrics, long timeoutMillis) {
+        long startedAt = Reactor.now();
+        long deadline = startedAt + timeoutMillis;
+        stopAccepting.run();
+        long live = metrics.liveSessions();
+        System.out.println("Draining: listener closed, " + live + " sessions open, deadline in " + timeoutMillis + " ms");
+        while (live > 0) {
+            long left = deadline - Reactor.now();
+            if (left <= 0) {
+                System.out.println("Drain deadline reached, dropping " + live + " sessions");
+                return;
+            }
+            try {
+                Thread.sleep(Math.min(left, PROGRESS_INTERVAL_MS));
+            } catch (InterruptedException e) {
+                return;
+            }
+            live = metrics.liveSessions();
+            if (live > 0) {
+                System.out.println("Draining: " + live + " sessions open, " + Math.max(0, deadline - Reactor.now()) + " ms left");
+            }
+        }
+        System.out.println("Drained in " + (Reactor.now() - startedAt) + " ms");
+    }
+}
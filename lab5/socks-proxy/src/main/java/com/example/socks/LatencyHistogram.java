@@ -0,0 +1,60 @@
+package com.example.socks;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_EXP = 40;
+    private static final int BUCKETS = SUB_COUNT + (MAX_EXP - SUB_BITS + 1) * SUB_COUNT;
+    private static final long MAX_VALUE = (1L << (MAX_EXP + 1)) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    public void record(long micros) {
+        long v = Math.min(MAX_VALUE, Math.max(0, micros));
+        counts.incrementAndGet(indexOf(v));
+        total.increment();
+        sum.add(v);
+    }
+
+    public long count() {
+        return total.sum();
+    }
+
+    public long sum() {
+        return sum.sum();
+    }
+
+    public long percentile(double p) {
+        long n = count();
+        if (n == 0) return 0;
+        long rank = (long) Math.ceil(p / 100.0 * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= Math.max(1, rank)) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    static int indexOf(long v) {
+        if (v < SUB_COUNT) return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int shift = exp - SUB_BITS;
+        int sub = (int) ((v >>> shift) & (SUB_COUNT - 1));
+        return SUB_COUNT + shift * SUB_COUNT + sub;
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB_COUNT) return index;
+        int shift = (index - SUB_COUNT) / SUB_COUNT;
+        int sub = (index - SUB_COUNT) % SUB_COUNT;
+        return ((long) (SUB_COUNT + sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.socks;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class Log {
+    private static final int QUEUE_SIZE = 4096;
+    private static final long WINDOW_MS = 1000;
+
+    private static volatile int linesPerSecond = 100;
+    private static final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private static final AtomicLong window = new AtomicLong();
+    private static final AtomicLong used = new AtomicLong();
+    private static final AtomicLong suppressed = new AtomicLong();
+
+    static {
+        Thread writer = new Thread(Log::drain, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private Log() {
+    }
+
+    static void setRate(int perSecond) {
+        linesPerSecond = perSecond;
+    }
+
+    public static boolean allow() {
+        long now = System.nanoTime() / 1_000_000 / WINDOW_MS;
+        long current = window.get();
+        if (current != now && window.compareAndSet(current, now)) {
+            used.set(0);
+        }
+        if (used.incrementAndGet() <= linesPerSecond) {
+            return true;
+        }
+        suppressed.incrementAndGet();
+        return false;
+    }
+
+    public static void info(String message) {
+        if (!queue.offer(message)) {
+            suppressed.incrementAndGet();
+        }
+    }
+
+    public static long getSuppressed() {
+        return suppressed.get();
+    }
+
+    private static void drain() {
+        long reported = 0;
+        while (true) {
+            try {
+                String line = queue.take();
+                long s = suppressed.get();
+                if (s != reported) {
+                    System.out.println("(" + (s - reported) + " log lines suppressed)");
+                    reported = s;
+                }
+                System.out.println(line);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
@@ -2,12 +2,22 @@ package com.example.socks;
 
 public class Main {
     public static void main(String[] args) throws Exception {
-        if (args.length != 1) {
-            System.out.println("Usage: java -jar socks-proxy.jar <port>");
+        if (args.length == 3 && args[0].equals("hash-password")) {
+            System.out.println(CredentialStore.hashLine(args[1], args[2]));
             return;
         }
-        int port = Integer.parseInt(args[0]);
-        SocksProxy proxy = new SocksProxy(port);
-        proxy.start();
+        ProxyConfig config;
+        try {
+            config = ProxyConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println("Usage: java -jar socks-proxy.jar <port> [--option=value ...] (see RUN.txt)");
+            return;
+        }
+        if (config.engine == ProxyConfig.Engine.THREADS) {
+            new BlockingSocksProxy(config).start();
+        } else {
+            new SocksProxy(config).start();
+        }
     }
 }
@@ -0,0 +1,126 @@
+package com.example.socks;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Metrics {
+    private final LongAdder[] sessionsByState = new LongAdder[SocksSession.State.values().length];
+    final LongAdder sessionsAccepted = new LongAdder();
+    final LongAdder sessionsClosed = new LongAdder();
+    final LongAdder bytesClientToRemote = new LongAdder();
+    final LongAdder bytesRemoteToClient = new LongAdder();
+    final LongAdder datagramsClientToRemote = new LongAdder();
+    final LongAdder datagramsRemoteToClient = new LongAdder();
+    final LongAdder datagramsDropped = new LongAdder();
+    final LongAdder dnsQueries = new LongAdder();
+    final LongAdder dnsTimeouts = new LongAdder();
+    final LongAdder connectFailures = new LongAdder();
+    final LongAdder sessionTimeouts = new LongAdder();
+    final LongAdder authFailures = new LongAdder();
+    final LongAdder throttled = new LongAdder();
+    final LongAdder aclDenied = new LongAdder();
+    final LongAdder warmPoolHits = new LongAdder();
+    final LongAdder warmPoolMisses = new LongAdder();
+    private final ConcurrentHashMap<String, UserTraffic> users = new ConcurrentHashMap<>();
+    final LatencyHistogram dnsRtt = new LatencyHistogram();
+    final LatencyHistogram connectLatency = new LatencyHistogram();
+    final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+
+    public Metrics() {
+        for (int i = 0; i < sessionsByState.length; i++) {
+            sessionsByState[i] = new LongAdder();
+        }
+    }
+
+    void sessionOpened(SocksSession.State initial) {
+        sessionsAccepted.increment();
+        sessionsByState[initial.ordinal()].increment();
+    }
+
+    void transition(SocksSession.State from, SocksSession.State to) {
+        sessionsByState[from.ordinal()].decrement();
+        if (to == SocksSession.State.CLOSED) {
+            sessionsClosed.increment();
+        } else {
+            sessionsByState[to.ordinal()].increment();
+        }
+    }
+
+    UserTraffic user(String name) {
+        return users.computeIfAbsent(name, n -> new UserTraffic());
+    }
+
+    void countClientToRemote(UserTraffic user, long bytes) {
+        bytesClientToRemote.add(bytes);
+        if (user != null) {
+            user.clientToRemote.add(bytes);
+        }
+    }
+
+    void countRemoteToClient(UserTraffic user, long bytes) {
+        bytesRemoteToClient.add(bytes);
+        if (user != null) {
+            user.remoteToClient.add(bytes);
+        }
+    }
+
+    long liveSessions() {
+        return sessionsAccepted.sum() - sessionsClosed.sum();
+    }
+
+    long sessionsIn(SocksSession.State state) {
+        return sessionsByState[state.ordinal()].sum();
+    }
+
+    void appendTo(StringBuilder out) {
+        for (SocksSession.State state : SocksSession.State.values()) {
+            if (state == SocksSession.State.CLOSED) continue;
+            line(out, "socks_sessions{state=\"" + state.name().toLowerCase() + "\"}", sessionsIn(state));
+        }
+        line(out, "socks_sessions_accepted_total", sessionsAccepted.sum());
+        line(out, "socks_sessions_closed_total", sessionsClosed.sum());
+        line(out, "socks_session_timeouts_total", sessionTimeouts.sum());
+        line(out, "socks_bytes_total{direction=\"client_to_remote\"}", bytesClientToRemote.sum());
+        line(out, "socks_bytes_total{direction=\"remote_to_client\"}", bytesRemoteToClient.sum());
+        line(out, "socks_datagrams_total{direction=\"client_to_remote\"}", datagramsClientToRemote.sum());
+        line(out, "socks_datagrams_total{direction=\"remote_to_client\"}", datagramsRemoteToClient.sum());
+        line(out, "socks_datagrams_dropped_total", datagramsDropped.sum());
+        line(out, "socks_auth_failures_total", authFailures.sum());
+        line(out, "socks_throttled_total", throttled.sum());
+        line(out, "socks_acl_denied_total", aclDenied.sum());
+        line(out, "socks_warm_pool_hits_total", warmPoolHits.sum());
+        line(out, "socks_warm_pool_misses_total", warmPoolMisses.sum());
+        for (Map.Entry<String, UserTraffic> entry : users.entrySet()) {
+            String user = entry.getKey().replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+            line(out, "socks_user_bytes_total{user=\"" + user + "\",direction=\"client_to_remote\"}",
+                    entry.getValue().clientToRemote.sum());
+            line(out, "socks_user_bytes_total{user=\"" + user + "\",direction=\"remote_to_client\"}",
+                    entry.getValue().remoteToClient.sum());
+        }
+        line(out, "socks_dns_queries_total", dnsQueries.sum());
+        line(out, "socks_dns_timeouts_total", dnsTimeouts.sum());
+        line(out, "socks_connect_failures_total", connectFailures.sum());
+        histogram(out, "socks_dns_rtt_us", dnsRtt);
+        histogram(out, "socks_connect_latency_us", connectLatency);
+        histogram(out, "socks_time_to_first_byte_us", timeToFirstByte);
+    }
+
+    static void line(StringBuilder out, String name, long value) {
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    static final class UserTraffic {
+        final LongAdder clientToRemote = new LongAdder();
+        final LongAdder remoteToClient = new LongAdder();
+    }
+
+    private static void histogram(StringBuilder out, String name, LatencyHistogram h) {
+        line(out, name + "_count", h.count());
+        line(out, name + "_sum", h.sum());
+        line(out, name + "{quantile=\"0.5\"}", h.percentile(50));
+        line(out, name + "{quantile=\"0.9\"}", h.percentile(90));
+        line(out, name + "{quantile=\"0.99\"}", h.percentile(99));
+        line(out, name + "{quantile=\"0.999\"}", h.percentile(99.9));
+    }
+}
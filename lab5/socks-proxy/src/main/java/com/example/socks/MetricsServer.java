@@ -0,0 +1,29 @@
+package com.example.socks;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+public class MetricsServer {
+    private final HttpServer server;
+
+    public MetricsServer(InetSocketAddress address, Supplier<String> metrics) throws IOException {
+        this.server = HttpServer.create(address, 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = metrics.get().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+    }
+}
@@ -0,0 +1,291 @@
+package com.example.socks;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+public class ProxyConfig {
+    enum Engine {NIO, THREADS}
+
+    enum RelayMode {BUFFER, VECTORED}
+
+    int port;
+    Engine engine = Engine.NIO;
+    int reactors = Runtime.getRuntime().availableProcessors();
+    int bufferSize = 32 * 1024;
+    long bufferMemory = 256L * 1024 * 1024;
+    int dnsCacheSize = 10_000;
+    long dnsNegativeTtlMillis = 10_000;
+    List<InetSocketAddress> dnsServers = List.of(new InetSocketAddress("8.8.8.8", 53));
+    long dnsTimeoutMillis = 1000;
+    int dnsAttempts = 3;
+    long dnsResolutionDelayMillis = 50;
+    long connectAttemptDelayMillis = 250;
+    long addressPenaltyMillis = 10_000;
+    long handshakeTimeoutMillis = 10_000;
+    long connectTimeoutMillis = 30_000;
+    long idleTimeoutMillis = 300_000;
+    RelayMode relayMode = RelayMode.BUFFER;
+    int relaySegments = 4;
+    int relayQuantum = 16 * 1024;
+    int metricsPort = 0;
+    int logRate = 100;
+    Path authFile;
+    int authWorkers = 2;
+    int authQueue = 1024;
+    long sessionRate = 0;
+    long clientRate = 0;
+    long globalRate = 0;
+    List<InetSocketAddress> warmPool = List.of();
+    int warmPoolMax = 8;
+    Path aclFile;
+    long drainTimeoutMillis = 30_000;
+    boolean reusePort;
+    boolean inheritListener;
+    List<InetSocketAddress> upstreams = List.of();
+    List<Integer> upstreamWeights = List.of();
+    UpstreamPool.Balance upstreamBalance = UpstreamPool.Balance.WRR;
+    long upstreamCheckIntervalMillis = 2000;
+    int upstreamCheckTimeoutMillis = 1000;
+    long breakerOpenMillis = 5000;
+    int breakerMinCalls = 5;
+    int breakerFailurePercent = 50;
+    long breakerSlowMillis = 0;
+
+    public static ProxyConfig parse(String[] args) {
+        if (args.length < 1) {
+            throw new IllegalArgumentException("port is required");
+        }
+        ProxyConfig config = new ProxyConfig();
+        config.port = Integer.parseInt(args[0]);
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("bad option: " + arg);
+            }
+            config.set(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        return config;
+    }
+
+    static List<InetSocketAddress> parseAddresses(String value, int defaultPort) {
+        List<InetSocketAddress> result = new ArrayList<>();
+        for (InetSocketAddress address : parseHostPorts(value, defaultPort)) {
+            result.add(new InetSocketAddress(address.getHostString(), address.getPort()));
+        }
+        return result;
+    }
+
+    static List<InetSocketAddress> parseHostPorts(String value, int defaultPort) {
+        List<InetSocketAddress> result = new ArrayList<>();
+        for (String part : value.split(",")) {
+            String s = part.trim();
+            if (s.isEmpty()) continue;
+            String host = s;
+            int port = defaultPort;
+            int colon = s.lastIndexOf(':');
+            if (s.startsWith("[")) {
+                int close = s.indexOf(']');
+                host = s.substring(1, close);
+                if (colon > close) {
+                    port = Integer.parseInt(s.substring(colon + 1));
+                }
+            } else if (colon >= 0 && s.indexOf(':') == colon) {
+                host = s.substring(0, colon);
+                port = Integer.parseInt(s.substring(colon + 1));
+            }
+            result.add(InetSocketAddress.createUnresolved(host, port));
+        }
+        if (result.isEmpty()) {
+            throw new IllegalArgumentException("empty address list: " + value);
+        }
+        return result;
+    }
+
+    private void parseUpstreams(String value) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        List<Integer> weights = new ArrayList<>();
+        for (String part : value.split(",")) {
+            String s = part.trim();
+            if (s.isEmpty()) continue;
+            int at = s.lastIndexOf('@');
+            int weight = at >= 0 ? Integer.parseInt(s.substring(at + 1)) : 1;
+            if (weight < 1) {
+                throw new IllegalArgumentException("upstream weight must be >= 1: " + s);
+            }
+            addresses.add(parseHostPorts(at >= 0 ? s.substring(0, at) : s, 1080).get(0));
+            weights.add(weight);
+        }
+        upstreams = addresses;
+        upstreamWeights = weights;
+    }
+
+    int buffersPerReactor() {
+        long perReactor = bufferMemory / reactors / bufferSize;
+        if (perReactor < 2) {
+            throw new IllegalArgumentException("buffer-memory-mb too small for " + reactors + " reactors");
+        }
+        return (int) Math.min(perReactor, Integer.MAX_VALUE);
+    }
+
+    private void set(String key, String value) {
+        switch (key) {
+            case "engine":
+                engine = Engine.valueOf(value.toUpperCase(Locale.ROOT));
+                break;
+            case "reactors":
+                reactors = Integer.parseInt(value);
+                if (reactors < 1) {
+                    throw new IllegalArgumentException("reactors must be >= 1");
+                }
+                break;
+            case "buffer-size":
+                bufferSize = Integer.parseInt(value);
+                if (bufferSize < 1024) {
+                    throw new IllegalArgumentException("buffer-size must be >= 1024");
+                }
+                break;
+            case "buffer-memory-mb":
+                bufferMemory = Long.parseLong(value) * 1024 * 1024;
+                break;
+            case "dns-cache-size":
+                dnsCacheSize = Integer.parseInt(value);
+                break;
+            case "dns-negative-ttl-ms":
+                dnsNegativeTtlMillis = Long.parseLong(value);
+                break;
+            case "dns":
+                dnsServers = parseAddresses(value, 53);
+                break;
+            case "dns-timeout-ms":
+                dnsTimeoutMillis = Long.parseLong(value);
+                break;
+            case "dns-attempts":
+                dnsAttempts = Integer.parseInt(value);
+                if (dnsAttempts < 1) {
+                    throw new IllegalArgumentException("dns-attempts must be >= 1");
+                }
+                break;
+            case "dns-resolution-delay-ms":
+                dnsResolutionDelayMillis = Long.parseLong(value);
+                break;
+            case "connect-attempt-delay-ms":
+                connectAttemptDelayMillis = Long.parseLong(value);
+                break;
+            case "address-penalty-ms":
+                addressPenaltyMillis = Long.parseLong(value);
+                break;
+            case "handshake-timeout-ms":
+                handshakeTimeoutMillis = Long.parseLong(value);
+                break;
+            case "connect-timeout-ms":
+                connectTimeoutMillis = Long.parseLong(value);
+                break;
+            case "idle-timeout-ms":
+                idleTimeoutMillis = Long.parseLong(value);
+                break;
+            case "relay":
+                relayMode = RelayMode.valueOf(value.toUpperCase(Locale.ROOT));
+                break;
+            case "relay-segments":
+                relaySegments = Integer.parseInt(value);
+                if (relaySegments < 1) {
+                    throw new IllegalArgumentException("relay-segments must be >= 1");
+                }
+                break;
+            case "relay-quantum":
+                relayQuantum = Integer.parseInt(value);
+                if (relayQuantum < 1024) {
+                    throw new IllegalArgumentException("relay-quantum must be >= 1024");
+                }
+                break;
+            case "warm-pool":
+                warmPool = parseHostPorts(value, 80);
+                break;
+            case "warm-pool-max":
+                warmPoolMax = Integer.parseInt(value);
+                break;
+            case "acl-file":
+                aclFile = Paths.get(value);
+                break;
+            case "drain-timeout-ms":
+                drainTimeoutMillis = Long.parseLong(value);
+                break;
+            case "reuse-port":
+                reusePort = Boolean.parseBoolean(value);
+                break;
+            case "inherit-listener":
+                inheritListener = Boolean.parseBoolean(value);
+                break;
+            case "upstream":
+                parseUpstreams(value);
+                break;
+            case "upstream-balance":
+                upstreamBalance = UpstreamPool.Balance.valueOf(value.toUpperCase(Locale.ROOT).replace('-', '_'));
+                break;
+            case "upstream-check-ms":
+                upstreamCheckIntervalMillis = Long.parseLong(value);
+                if (upstreamCheckIntervalMillis < 100) {
+                    throw new IllegalArgumentException("upstream-check-ms must be >= 100");
+                }
+                break;
+            case "upstream-check-timeout-ms":
+                upstreamCheckTimeoutMillis = Integer.parseInt(value);
+                if (upstreamCheckTimeoutMillis < 1) {
+                    throw new IllegalArgumentException("upstream-check-timeout-ms must be >= 1");
+                }
+                break;
+            case "breaker-open-ms":
+                breakerOpenMillis = Long.parseLong(value);
+                break;
+            case "breaker-min-calls":
+                breakerMinCalls = Integer.parseInt(value);
+                break;
+            case "breaker-failure-percent":
+                breakerFailurePercent = Integer.parseInt(value);
+                if (breakerFailurePercent < 1 || breakerFailurePercent > 100) {
+                    throw new IllegalArgumentException("breaker-failure-percent must be in 1..100");
+                }
+                break;
+            case "breaker-slow-ms":
+                breakerSlowMillis = Long.parseLong(value);
+                break;
+            case "metrics-port":
+                metricsPort = Integer.parseInt(value);
+                break;
+            case "log-rate":
+                logRate = Integer.parseInt(value);
+                break;
+            case "auth-file":
+                authFile = Paths.get(value);
+                break;
+            case "auth-queue":
+                authQueue = Integer.parseInt(value);
+                if (authQueue < 1) {
+                    throw new IllegalArgumentException("auth-queue must be >= 1");
+                }
+                break;
+            case "auth-workers":
+                authWorkers = Integer.parseInt(value);
+                if (authWorkers < 1) {
+                    throw new IllegalArgumentException("auth-workers must be >= 1");
+                }
+                break;
+            case "rate-session":
+                sessionRate = Long.parseLong(value);
+                break;
+            case "rate-client":
+                clientRate = Long.parseLong(value);
+                break;
+            case "rate-global":
+                globalRate = Long.parseLong(value);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown option: --" + key);
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.example.socks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class Reactor implements Runnable {
+    private static final int BUFFERS_PER_SLAB = 64;
+    private static final long TIMER_TICK_MS = 10;
+    private static final int TIMER_WHEEL_SIZE = 512;
+
+    private final int id;
+    private final ProxyConfig config;
+    private final Selector selector;
+    private final BufferPool bufferPool;
+    private final TimerWheel timers;
+    private final DnsResolver dnsResolver;
+    private final AddressHealth addressHealth;
+    private final Metrics metrics;
+    private final CredentialStore credentials;
+    private final BandwidthLimiter limiter;
+    private final WarmPool warmPool;
+    private final AccessControl acl;
+    private final UpstreamPool upstreams;
+    private final CircuitBreaker breaker;
+    private final ByteBuffer datagramBuffer = ByteBuffer.allocateDirect(UdpAssociation.MAX_HEADER + UdpAssociation.MAX_DATAGRAM);
+    private long loopTime = now();
+    private final Queue<SocketChannel> incoming = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<SelectionKey> runQueue = new ArrayDeque<>();
+
+    public Reactor(int id, ProxyConfig config, DnsCache dnsCache, AddressHealth addressHealth, Metrics metrics,
+                   CredentialStore credentials, BandwidthLimiter limiter, AccessControl acl,
+                   UpstreamPool upstreams, CircuitBreaker breaker) throws IOException {
+        this.id = id;
+        this.config = config;
+        this.selector = Selector.open();
+        this.bufferPool = new BufferPool(this, config.bufferSize, BUFFERS_PER_SLAB, config.buffersPerReactor());
+        this.timers = new TimerWheel(TIMER_TICK_MS, TIMER_WHEEL_SIZE, now());
+        this.metrics = metrics;
+        this.dnsResolver = new DnsResolver(selector, timers, dnsCache, metrics, config);
+        this.addressHealth = addressHealth;
+        this.credentials = credentials;
+        this.limiter = limiter;
+        this.acl = acl;
+        this.upstreams = upstreams;
+        this.breaker = breaker;
+        this.warmPool = new WarmPool(this, config);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public ProxyConfig getConfig() {
+        return config;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public AddressHealth getAddressHealth() {
+        return addressHealth;
+    }
+
+    public CredentialStore getCredentials() {
+        return credentials;
+    }
+
+    public BandwidthLimiter getLimiter() {
+        return limiter;
+    }
+
+    AccessControl getAccessControl() {
+        return acl;
+    }
+
+    CircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    UpstreamPool getUpstreams() {
+        return upstreams;
+    }
+
+    WarmPool getWarmPool() {
+        return warmPool;
+    }
+
+    public TimerWheel getTimers() {
+        return timers;
+    }
+
+    ByteBuffer getDatagramBuffer() {
+        return datagramBuffer;
+    }
+
+    long clock() {
+        return loopTime;
+    }
+
+    static long now() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    void assign(SocketChannel client) {
+        incoming.add(client);
+        selector.wakeup();
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            loop();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void loop() throws IOException {
+        while (true) {
+            selector.select(timers.isEmpty() ? 0 : timers.millisUntilNextTick(now()));
+            loopTime = now();
+            timers.advance(loopTime);
+            registerIncoming();
+            runTasks();
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                if (key.attachment() instanceof SocksSession && ((SocksSession) key.attachment()).isBulk()
+                        && key.isValid() && (key.readyOps() & SelectionKey.OP_CONNECT) == 0) {
+                    runQueue.add(key);
+                    continue;
+                }
+                dispatch(key);
+            }
+            SelectionKey deferred;
+            while ((deferred = runQueue.poll()) != null) {
+                dispatch(deferred);
+            }
+        }
+    }
+
+    private void dispatch(SelectionKey key) {
+        try {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.attachment() instanceof DnsResolver) {
+                dnsResolver.handleRead();
+            } else if (key.attachment() instanceof WarmPool.Pending) {
+                warmPool.handleConnect(key);
+            } else if (key.attachment() instanceof UdpAssociation) {
+                ((UdpAssociation) key.attachment()).handleRead((DatagramChannel) key.channel());
+            } else {
+                Object att = key.attachment();
+                if (att instanceof SocksSession) {
+                    SocksSession session = (SocksSession) att;
+                    if (key.isAcceptable()) {
+                        session.handleBindAccept();
+                        return;
+                    }
+                    if (key.isConnectable()) {
+                        session.handleRemoteConnect((SocketChannel) key.channel());
+                        if (!key.isValid()) return;
+                    }
+                    if (key.isReadable()) {
+                        if (key.channel() == session.getClientChannel()) {
+                            session.handleClientRead();
+                        } else {
+                            session.handleRemoteRead();
+                        }
+                        if (!key.isValid()) return;
+                    }
+                    if (key.isWritable() && key.isValid()) {
+                        if (key.channel() == session.getClientChannel()) {
+                            session.handleClientWrite();
+                        } else {
+                            session.handleRemoteWrite();
+                        }
+                    }
+                }
+            }
+        } catch (Exception e) {
+            if (!(e instanceof IOException) && Log.allow()) {
+                Log.info("Unexpected error on reactor " + id + ": " + e);
+            }
+            if (key.attachment() instanceof SocksSession) {
+                ((SocksSession) key.attachment()).close();
+            } else if (key.attachment() instanceof UdpAssociation) {
+                ((UdpAssociation) key.attachment()).getSession().close();
+            } else {
+                if (e instanceof IOException && Log.allow()) {
+                    Log.info("Closing channel on reactor " + id + ": " + e);
+                }
+                closeKey(key);
+            }
+        }
+    }
+
+    private void registerIncoming() {
+        SocketChannel client;
+        while ((client = incoming.poll()) != null) {
+            try {
+                SelectionKey key = client.register(selector, SelectionKey.OP_READ);
+                key.attach(new SocksSession(this, client));
+                if (Log.allow()) {
+                    Log.info("Accepted client " + client.getRemoteAddress() + " on reactor " + id);
+                }
+            } catch (IOException e) {
+                if (Log.allow()) {
+                    Log.info("Failed to register client on reactor " + id + ": " + e);
+                }
+                try {
+                    client.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    void beginDrain() {
+        warmPool.shutdown();
+    }
+
+    DnsResolver.Handle resolve(DnsResolver.Waiter waiter, String host) throws IOException {
+        return dnsResolver.resolve(waiter, host);
+    }
+
+    void registerRemote(SocksSession session, SocketChannel remote) throws ClosedChannelException {
+        remote.register(selector, SelectionKey.OP_CONNECT, session);
+    }
+
+    void registerWarm(SocketChannel ch, WarmPool.Pending pending, int ops) throws ClosedChannelException {
+        ch.register(selector, ops, pending);
+    }
+
+    void registerBind(SocksSession session, ServerSocketChannel ch) throws ClosedChannelException {
+        ch.register(selector, SelectionKey.OP_ACCEPT, session);
+    }
+
+    void registerDatagram(DatagramChannel ch, UdpAssociation association) throws ClosedChannelException {
+        ch.register(selector, SelectionKey.OP_READ, association);
+    }
+
+    void updateInterests(SocketChannel ch, int ops) {
+        SelectionKey key = ch.keyFor(selector);
+        if (key != null && key.isValid()) {
+            key.interestOps(ops);
+        }
+    }
+
+    private void closeKey(SelectionKey key) {
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+        }
+        key.cancel();
+    }
+}
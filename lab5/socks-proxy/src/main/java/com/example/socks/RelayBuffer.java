@@ -0,0 +1,36 @@
+package com.example.socks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+public abstract class RelayBuffer {
+    static final int NO_BUFFER = -2;
+
+    protected final BufferPool pool;
+
+    protected RelayBuffer(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    static RelayBuffer create(BufferPool pool, ProxyConfig config) {
+        if (config.relayMode == ProxyConfig.RelayMode.VECTORED) {
+            return new VectoredRelayBuffer(pool, config.relaySegments);
+        }
+        return new CompactingRelayBuffer(pool);
+    }
+
+    abstract int readFrom(SocketChannel src, int maxBytes) throws IOException;
+
+    abstract boolean writeTo(SocketChannel dst);
+
+    abstract boolean put(ByteBuffer src);
+
+    abstract boolean hasPending();
+
+    abstract boolean hasSpace();
+
+    abstract void recycle();
+
+    abstract void release();
+}
@@ -0,0 +1,253 @@
+package com.example.socks;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public final class Socks5Codec {
+    static final byte VERSION = 0x05;
+
+    static final byte METHOD_NO_AUTH = 0x00;
+    static final byte METHOD_USERNAME_PASSWORD = 0x02;
+    static final byte METHOD_NONE_ACCEPTABLE = (byte) 0xFF;
+
+    static final byte AUTH_VERSION = 0x01;
+    static final byte AUTH_SUCCESS = 0x00;
+    static final byte AUTH_FAILURE = 0x01;
+
+    static final byte CMD_CONNECT = 0x01;
+    static final byte CMD_BIND = 0x02;
+    static final byte CMD_UDP_ASSOCIATE = 0x03;
+
+    static final byte ATYP_IPV4 = 0x01;
+    static final byte ATYP_DOMAIN = 0x03;
+    static final byte ATYP_IPV6 = 0x04;
+
+    static final byte REP_SUCCEEDED = 0x00;
+    static final byte REP_GENERAL_FAILURE = 0x01;
+    static final byte REP_NOT_ALLOWED = 0x02;
+    static final byte REP_HOST_UNREACHABLE = 0x04;
+    static final byte REP_CONNECTION_REFUSED = 0x05;
+    static final byte REP_COMMAND_NOT_SUPPORTED = 0x07;
+    static final byte REP_ADDRESS_NOT_SUPPORTED = 0x08;
+
+    private Socks5Codec() {
+    }
+
+    static Greeting parseGreeting(ByteBuffer buf) {
+        int start = buf.position();
+        if (buf.remaining() < 2) {
+            return null;
+        }
+        byte ver = buf.get();
+        int nMethods = buf.get() & 0xFF;
+        if (ver != VERSION) {
+            return new Greeting(ver, new byte[0]);
+        }
+        if (buf.remaining() < nMethods) {
+            buf.position(start);
+            return null;
+        }
+        byte[] methods = new byte[nMethods];
+        buf.get(methods);
+        return new Greeting(ver, methods);
+    }
+
+    static Credentials parseCredentials(ByteBuffer buf) {
+        int start = buf.position();
+        if (buf.remaining() < 2) {
+            return null;
+        }
+        byte ver = buf.get();
+        int userLen = buf.get() & 0xFF;
+        if (ver != AUTH_VERSION) {
+            return new Credentials(ver, null, null);
+        }
+        if (buf.remaining() < userLen + 1 || buf.remaining() < userLen + 1 + (buf.get(buf.position() + userLen) & 0xFF)) {
+            buf.position(start);
+            return null;
+        }
+        byte[] user = new byte[userLen];
+        buf.get(user);
+        byte[] password = new byte[buf.get() & 0xFF];
+        buf.get(password);
+        return new Credentials(ver, new String(user, StandardCharsets.UTF_8), password);
+    }
+
+    static Request parseRequest(ByteBuffer buf) throws UnknownHostException {
+        int start = buf.position();
+        if (buf.remaining() < 4) {
+            return null;
+        }
+        byte ver = buf.get();
+        byte cmd = buf.get();
+        buf.get();
+        byte atyp = buf.get();
+        if (ver != VERSION) {
+            return new Request(ver, cmd, atyp, null, null, 0);
+        }
+        InetAddress address = null;
+        String host = null;
+        if (atyp == ATYP_IPV4 || atyp == ATYP_IPV6) {
+            int len = atyp == ATYP_IPV4 ? 4 : 16;
+            if (buf.remaining() < len + 2) {
+                buf.position(start);
+                return null;
+            }
+            byte[] addr = new byte[len];
+            buf.get(addr);
+            address = InetAddress.getByAddress(addr);
+        } else if (atyp == ATYP_DOMAIN) {
+            if (buf.remaining() < 1 || buf.remaining() < 1 + (buf.get(buf.position()) & 0xFF) + 2) {
+                buf.position(start);
+                return null;
+            }
+            byte[] name = new byte[buf.get() & 0xFF];
+            buf.get(name);
+            host = new String(name, StandardCharsets.US_ASCII);
+        } else {
+            return new Request(ver, cmd, atyp, null, null, 0);
+        }
+        int port = ((buf.get() & 0xFF) << 8) | (buf.get() & 0xFF);
+        return new Request(ver, cmd, atyp, address, host, port);
+    }
+
+    static void writeConnect(ByteBuffer out, InetAddress address, String host, int port) {
+        out.put(VERSION);
+        out.put(CMD_CONNECT);
+        out.put((byte) 0x00);
+        if (address != null) {
+            byte[] addr = address.getAddress();
+            out.put(addr.length == 16 ? ATYP_IPV6 : ATYP_IPV4);
+            out.put(addr);
+        } else {
+            byte[] name = host.getBytes(StandardCharsets.US_ASCII);
+            out.put(ATYP_DOMAIN);
+            out.put((byte) name.length);
+            out.put(name);
+        }
+        out.put((byte) (port >> 8));
+        out.put((byte) port);
+    }
+
+    static Reply parseReply(ByteBuffer buf) throws UnknownHostException {
+        int start = buf.position();
+        if (buf.remaining() < 5) {
+            return null;
+        }
+        byte ver = buf.get();
+        byte rep = buf.get();
+        buf.get();
+        byte atyp = buf.get();
+        int len = atyp == ATYP_IPV4 ? 4 : atyp == ATYP_IPV6 ? 16 : atyp == ATYP_DOMAIN ? 1 + (buf.get(buf.position()) & 0xFF) : -1;
+        if (ver != VERSION || len < 0) {
+            return new Reply(ver, rep, null);
+        }
+        if (buf.remaining() < len + 2) {
+            buf.position(start);
+            return null;
+        }
+        InetSocketAddress bind = null;
+        if (atyp == ATYP_DOMAIN) {
+            buf.position(buf.position() + len);
+            buf.getShort();
+        } else {
+            byte[] addr = new byte[len];
+            buf.get(addr);
+            int port = ((buf.get() & 0xFF) << 8) | (buf.get() & 0xFF);
+            bind = new InetSocketAddress(InetAddress.getByAddress(addr), port);
+        }
+        return new Reply(ver, rep, bind);
+    }
+
+    static void writeReply(ByteBuffer out, byte rep, InetSocketAddress bind) {
+        InetAddress address = bind != null ? bind.getAddress() : null;
+        int port = bind != null ? bind.getPort() : 0;
+        byte[] addr = address != null ? address.getAddress() : new byte[4];
+        out.put(VERSION);
+        out.put(rep);
+        out.put((byte) 0x00);
+        out.put(addr.length == 16 ? ATYP_IPV6 : ATYP_IPV4);
+        out.put(addr);
+        out.put((byte) (port >> 8));
+        out.put((byte) port);
+    }
+
+    static byte replyFor(IOException e) {
+        if (e instanceof ConnectException) return REP_CONNECTION_REFUSED;
+        if (e instanceof NoRouteToHostException) return REP_HOST_UNREACHABLE;
+        return REP_GENERAL_FAILURE;
+    }
+
+    static final class Greeting {
+        final byte version;
+        final byte[] methods;
+
+        private Greeting(byte version, byte[] methods) {
+            this.version = version;
+            this.methods = methods;
+        }
+
+        boolean offers(byte method) {
+            for (byte m : methods) {
+                if (m == method) return true;
+            }
+            return false;
+        }
+    }
+
+    static final class Credentials {
+        final byte version;
+        final String username;
+        final byte[] password;
+
+        private Credentials(byte version, String username, byte[] password) {
+            this.version = version;
+            this.username = username;
+            this.password = password;
+        }
+    }
+
+    static final class Reply {
+        final byte version;
+        final byte rep;
+        final InetSocketAddress bind;
+
+        private Reply(byte version, byte rep, InetSocketAddress bind) {
+            this.version = version;
+            this.rep = rep;
+            this.bind = bind;
+        }
+    }
+
+    static final class Request {
+        final byte version;
+        final byte command;
+        final byte addressType;
+        final InetAddress address;
+        final String host;
+        final int port;
+
+        private Request(byte version, byte command, byte addressType, InetAddress address, String host, int port) {
+            this.version = version;
+            this.command = command;
+            this.addressType = addressType;
+            this.address = address;
+            this.host = host;
+            this.port = port;
+        }
+
+        boolean hasSupportedAddress() {
+            return address != null || host != null;
+        }
+
+        boolean matchesPeer(InetAddress peer) {
+            return address == null || address.isAnyLocalAddress() || address.equals(peer);
+        }
+    }
+}
@@ -1,174 +1,166 @@
 package com.example.socks;
 
-import org.xbill.DNS.*;
-
 import java.io.IOException;
-import java.net.*;
-import java.nio.ByteBuffer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.channels.*;
-import java.util.*;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class SocksProxy {
-    private static final int BUFFER_SIZE = 32 * 1024;
-    private static final int DNS_BUFFER_SIZE = 2048;
+    private static final long STATS_INTERVAL_MS = 60_000;
 
-    private final int port;
+    private final ProxyConfig config;
     private final Selector selector;
     private final ServerSocketChannel serverChannel;
-    private final DatagramChannel dnsChannel;
-    private final InetSocketAddress dnsResolver;
-    private final Map<SocketChannel, SocksSession> sessions = new HashMap<>();
-    private final Map<Integer, SocksSession> dnsPending = new HashMap<>();
-    private final Random random = new Random();
-
-    public SocksProxy(int port) throws IOException {
-        this.port = port;
+    private final Reactor[] reactors;
+    private final DnsCache dnsCache;
+    private final AddressHealth addressHealth;
+    private final BandwidthLimiter limiter;
+    private final UpstreamPool upstreams;
+    private final CircuitBreaker breaker;
+    private final Metrics metrics = new Metrics();
+    private final CountDownLatch listenerClosed = new CountDownLatch(1);
+    private volatile boolean draining;
+    private int nextReactor = 0;
+
+    public SocksProxy(ProxyConfig config) throws IOException {
+        this.config = config;
         this.selector = Selector.open();
 
-        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel = Drain.openListener(config);
         serverChannel.configureBlocking(false);
-        serverChannel.bind(new InetSocketAddress(port));
         serverChannel.register(selector, SelectionKey.OP_ACCEPT);
 
-        this.dnsChannel = DatagramChannel.open();
-        dnsChannel.configureBlocking(false);
-        this.dnsResolver = new InetSocketAddress("8.8.8.8", 53);
-        dnsChannel.register(selector, SelectionKey.OP_READ);
+        this.dnsCache = new DnsCache(config.dnsCacheSize, config.dnsNegativeTtlMillis);
+        this.addressHealth = new AddressHealth(config.addressPenaltyMillis);
+        CredentialStore credentials = config.authFile != null ? new CredentialStore(config.authFile, config.authWorkers, config.authQueue) : null;
+        this.limiter = new BandwidthLimiter(config);
+        AccessControl acl = new AccessControl(config.aclFile);
+        this.upstreams = new UpstreamPool(config);
+        this.breaker = new CircuitBreaker(config);
+        this.reactors = new Reactor[config.reactors];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor(i, config, dnsCache, addressHealth, metrics, credentials, limiter, acl, upstreams,
+                    breaker);
+        }
+
+        Log.setRate(config.logRate);
+        if (config.metricsPort > 0) {
+            new MetricsServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), config.metricsPort), this::renderMetrics).start();
+            System.out.println("Metrics at http://127.0.0.1:" + config.metricsPort + "/metrics");
+        }
 
-        System.out.println("SOCKS5 proxy listening on port " + port);
+        Drain.install(this::stopAccepting, metrics, config.drainTimeoutMillis);
+        System.out.println("SOCKS5 proxy listening on " + serverChannel.getLocalAddress() + " with " + reactors.length + " reactors");
     }
 
     public void start() throws IOException {
-        while (true) {
-            selector.select();
+        for (Reactor reactor : reactors) {
+            Thread t = new Thread(reactor, "reactor-" + reactor.getId());
+            t.setDaemon(true);
+            t.start();
+        }
+        long nextStats = System.currentTimeMillis() + STATS_INTERVAL_MS;
+        while (!draining) {
+            selector.select(STATS_INTERVAL_MS);
+            long now = System.currentTimeMillis();
+            if (now >= nextStats) {
+                if (Log.allow()) {
+                    Log.info(bufferPoolStats());
+                    Log.info("DNS cache " + dnsCache.size() + " entries, hits " + dnsCache.getHits()
+                            + ", misses " + dnsCache.getMisses() + "; suspect addresses " + addressHealth.size());
+                }
+                nextStats = now + STATS_INTERVAL_MS;
+            }
             Iterator<SelectionKey> it = selector.selectedKeys().iterator();
             while (it.hasNext()) {
                 SelectionKey key = it.next();
                 it.remove();
-                try {
-                    if (!key.isValid()) {
-                        continue;
-                    }
-                    if (key.isAcceptable()) {
-                        handleAccept();
-                    } else if (key.channel() == dnsChannel && key.isReadable()) {
-                        handleDnsRead();
-                    } else {
-                        Object att = key.attachment();
-                        if (att instanceof SocksSession) {
-                            SocksSession session = (SocksSession) att;
-                            if (key.isConnectable()) {
-                                session.handleRemoteConnect();
-                                if (!key.isValid()) continue;
-                            }
-                            if (key.isReadable()) {
-                                if (key.channel() == session.getClientChannel()) {
-                                    session.handleClientRead();
-                                } else {
-                                    session.handleRemoteRead();
-                                }
-                                if (!key.isValid()) continue;
-                            }
-                            if (key.isWritable() && key.isValid()) {
-                                if (key.channel() == session.getClientChannel()) {
-                                    session.handleClientWrite();
-                                } else {
-                                    session.handleRemoteWrite();
-                                }
-                            }
-                        }
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    closeKey(key);
+                if (key.isValid() && key.isAcceptable()) {
+                    handleAccept();
                 }
             }
         }
+        handleAccept();
+        serverChannel.close();
+        selector.close();
+        listenerClosed.countDown();
     }
 
-    private void handleAccept() throws IOException {
-        SocketChannel client = serverChannel.accept();
-        if (client == null) {
-            return;
-        }
-        client.configureBlocking(false);
-        SelectionKey key = client.register(selector, SelectionKey.OP_READ);
-        SocksSession session = new SocksSession(this, client);
-        sessions.put(client, session);
-        key.attach(session);
-        System.out.println("Accepted client " + client.getRemoteAddress());
-    }
-
-    private void handleDnsRead() throws IOException {
-        ByteBuffer buf = ByteBuffer.allocate(DNS_BUFFER_SIZE);
-        SocketAddress from = dnsChannel.receive(buf);
-        if (from == null) return;
-        buf.flip();
-        byte[] data = new byte[buf.remaining()];
-        buf.get(data);
+    void stopAccepting() {
+        draining = true;
+        selector.wakeup();
         try {
-            Message response = new Message(data);
-            int id = response.getHeader().getID();
-            SocksSession session = dnsPending.remove(id);
-            if (session == null) {
-                return;
-            }
-            org.xbill.DNS.Record[] answers = response.getSectionArray(Section.ANSWER);
-            InetAddress ipv4 = null;
-            for (org.xbill.DNS.Record r : answers) {
-                if (r instanceof ARecord) {
-                    ipv4 = ((ARecord) r).getAddress();
-                    break;
-                }
-            }
-            if (ipv4 == null) {
-                session.failConnect((byte) 0x04);
-            } else {
-                session.onResolved(ipv4);
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+            listenerClosed.await(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Reactor reactor : reactors) {
+            reactor.execute(reactor::beginDrain);
         }
     }
 
-    void sendDnsQuery(SocksSession session, String host) throws IOException {
-        Name name = Name.fromString(host.endsWith(".") ? host : host + ".");
-        org.xbill.DNS.Record rec = org.xbill.DNS.Record.newRecord(name, Type.A, DClass.IN);
-        Message query = Message.newQuery(rec);
-        int id;
-        do {
-            id = random.nextInt(0xFFFF);
-        } while (dnsPending.containsKey(id));
-        query.getHeader().setID(id);
-        byte[] payload = query.toWire();
-        ByteBuffer buf = ByteBuffer.wrap(payload);
-        dnsPending.put(id, session);
-        dnsChannel.send(buf, dnsResolver);
-        System.out.println("DNS query for " + host + " id=" + id);
-    }
-
-    void registerRemote(SocksSession session, SocketChannel remote) throws ClosedChannelException {
-        remote.register(selector, SelectionKey.OP_CONNECT, session);
+    public String bufferPoolStats() {
+        PoolTotals pools = bufferPoolTotals();
+        return "buffers in use " + pools.inUse + "/" + pools.allocated + " allocated, cap " + pools.max
+                + ", waiting " + pools.waiting + ", exhausted " + pools.exhausted;
     }
 
-    void updateInterests(SocketChannel ch, int ops) {
-        SelectionKey key = ch.keyFor(selector);
-        if (key != null && key.isValid()) {
-            key.interestOps(ops);
+    private PoolTotals bufferPoolTotals() {
+        PoolTotals totals = new PoolTotals();
+        for (Reactor reactor : reactors) {
+            BufferPool pool = reactor.getBufferPool();
+            totals.max += pool.getMaxBuffers();
+            totals.allocated += pool.getAllocated();
+            totals.inUse += pool.getInUse();
+            totals.waiting += pool.getWaiting();
+            totals.exhausted += pool.getExhausted();
         }
+        return totals;
     }
 
-    void closeSession(SocksSession session) {
-        sessions.remove(session.getClientChannel());
-        dnsPending.values().removeIf(s -> s == session);
-        session.close();
+    public String renderMetrics() {
+        StringBuilder out = new StringBuilder(4096);
+        metrics.appendTo(out);
+        PoolTotals pools = bufferPoolTotals();
+        Metrics.line(out, "socks_buffer_pool_capacity", pools.max);
+        Metrics.line(out, "socks_buffer_pool_allocated", pools.allocated);
+        Metrics.line(out, "socks_buffer_pool_in_use", pools.inUse);
+        Metrics.line(out, "socks_buffer_pool_waiting", pools.waiting);
+        Metrics.line(out, "socks_buffer_pool_exhausted_total", pools.exhausted);
+        Metrics.line(out, "socks_dns_cache_entries", dnsCache.size());
+        Metrics.line(out, "socks_dns_cache_hits_total", dnsCache.getHits());
+        Metrics.line(out, "socks_dns_cache_misses_total", dnsCache.getMisses());
+        Metrics.line(out, "socks_suspect_addresses", addressHealth.size());
+        breaker.appendTo(out);
+        Metrics.line(out, "socks_rate_limited_clients", limiter.trackedClients());
+        upstreams.appendTo(out);
+        Metrics.line(out, "socks_log_suppressed_total", Log.getSuppressed());
+        Metrics.line(out, "socks_draining", draining ? 1 : 0);
+        return out.toString();
     }
 
-    private void closeKey(SelectionKey key) {
-        try {
-            key.channel().close();
-        } catch (IOException ignored) {
+    private void handleAccept() throws IOException {
+        SocketChannel client;
+        while ((client = serverChannel.accept()) != null) {
+            try {
+                client.configureBlocking(false);
+            } catch (IOException e) {
+                client.close();
+                continue;
+            }
+            reactors[nextReactor].assign(client);
+            nextReactor = (nextReactor + 1) % reactors.length;
         }
-        key.cancel();
+    }
+
+    private static final class PoolTotals {
+        long max;
+        long allocated;
+        long inUse;
+        long waiting;
+        long exhausted;
     }
 }
@@ -1,36 +1,92 @@
 package com.example.socks;
 
 import java.io.IOException;
-import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
-public class SocksSession {
-    private enum State {HANDSHAKE, REQUEST, RESOLVING, CONNECTING, RELAY, CLOSED}
+public class SocksSession implements DnsResolver.Waiter {
+    enum State {HANDSHAKE, AUTH, REQUEST, RESOLVING, CONNECTING, UPSTREAM, BINDING, RELAY, UDP_ASSOCIATE, CLOSED}
 
-    private final SocksProxy proxy;
+    private static final int UPSTREAM_BUFFER = 300;
+
+    private final Reactor reactor;
     private final SocketChannel client;
     private SocketChannel remote;
     private State state = State.HANDSHAKE;
 
-    private final ByteBuffer protoBuf = ByteBuffer.allocate(1024);
-    private final ByteBuffer toRemote = ByteBuffer.allocate(32 * 1024);
-    private final ByteBuffer toClient = ByteBuffer.allocate(32 * 1024);
-    private final ByteBuffer ioBuf = ByteBuffer.allocate(8192);
+    private final BufferPool pool;
+    private final Metrics metrics;
+    private ByteBuffer protoBuf = ByteBuffer.allocate(1024);
+    private final ByteBuffer replyBuf = ByteBuffer.allocate(64);
+    private final RelayBuffer toRemote;
+    private final RelayBuffer toClient;
 
     private String pendingHost;
+    private DnsResolver.Handle dnsHandle;
     private int pendingPort;
+    private final Deque<InetSocketAddress> candidates = new ArrayDeque<>();
+    private final Map<SocketChannel, InetSocketAddress> attempts = new HashMap<>(4);
+    private Metrics.UserTraffic traffic;
+    private final BandwidthLimiter.Throttle throttle;
+    private TimerWheel.Timeout throttleTimer;
+    private boolean throttled = false;
+    private final int quantum;
+    private boolean clientBulk = false;
+    private boolean remoteBulk = false;
+    private boolean authPending = false;
+    private UdpAssociation udp;
+    private ServerSocketChannel bindChannel;
+    private UpstreamPool.Upstream upstream;
+    private ByteBuffer warmEarly;
+    private boolean warmHit;
+    private Socks5Codec.Request upstreamRequest;
+    private ByteBuffer upstreamOut;
+    private ByteBuffer upstreamIn;
+    private boolean upstreamMethodAccepted;
+    private List<UpstreamPool.Upstream> failedUpstreams;
+    private Socks5Codec.Request bindRequest;
+    private TimerWheel.Timeout attemptTimer;
+    private byte connectFailure = 0x04;
+    private TimerWheel.Timeout deadline;
+    private long lastActivity;
+    private long requestedAt;
+    private long connectStartedAt;
+    private boolean firstByteSeen = false;
     private boolean clientInputClosed = false;
     private boolean remoteInputClosed = false;
-
-    public SocksSession(SocksProxy proxy, SocketChannel client) {
-        this.proxy = proxy;
+    private boolean clientReadParked = false;
+    private boolean remoteReadParked = false;
+    boolean bufferQueued = false;
+
+    public SocksSession(Reactor reactor, SocketChannel client) {
+        this.reactor = reactor;
+        this.pool = reactor.getBufferPool();
+        this.metrics = reactor.getMetrics();
+        metrics.sessionOpened(state);
+        this.toRemote = RelayBuffer.create(pool, reactor.getConfig());
+        this.toClient = RelayBuffer.create(pool, reactor.getConfig());
         this.client = client;
+        this.throttle = reactor.getLimiter().open(client.socket().getInetAddress());
+        this.quantum = reactor.getConfig().relayQuantum;
+        armDeadline(reactor.getConfig().handshakeTimeoutMillis);
+    }
+
+    boolean isBulk() {
+        return clientBulk || remoteBulk;
+    }
+
+    public boolean isClosed() {
+        return state == State.CLOSED;
     }
 
     public SocketChannel getClientChannel() {
@@ -38,7 +94,7 @@ public class SocksSession {
     }
 
     public void handleClientRead() throws IOException {
-        if (state == State.HANDSHAKE || state == State.REQUEST) {
+        if (state == State.HANDSHAKE || state == State.AUTH || state == State.REQUEST) {
             int read = client.read(protoBuf);
             if (read == -1) {
                 close();
@@ -46,84 +102,238 @@ public class SocksSession {
             }
             if (state == State.HANDSHAKE) {
                 tryHandleHandshake();
+            } else if (state == State.AUTH) {
+                tryHandleAuth();
             } else {
                 tryHandleRequest();
             }
             return;
         }
 
+        if (isAwaitingRemote()) {
+            if (client.read(protoBuf) == -1) {
+                clientInputClosed = true;
+            }
+            adjustInterests();
+            return;
+        }
+
+        if (state == State.UDP_ASSOCIATE) {
+            protoBuf.clear();
+            if (client.read(protoBuf) == -1) {
+                close();
+            }
+            return;
+        }
+
         if (state != State.RELAY || remote == null) {
             close();
             return;
         }
 
-        int read = readIntoBuffer(client, toRemote);
+        int allowance = throttle.allowance();
+        if (allowance == 0) {
+            startThrottle();
+            return;
+        }
+        int read = toRemote.readFrom(client, Math.min(allowance, quantum));
+        if (read == RelayBuffer.NO_BUFFER) {
+            clientReadParked = true;
+            pool.await(this);
+            adjustInterests();
+            return;
+        }
+        lastActivity = reactor.clock();
+        clientBulk = read >= quantum;
+        if (read > 0) {
+            metrics.countClientToRemote(traffic, read);
+            consume(read);
+        }
         if (read == -1) {
             clientInputClosed = true;
-            shutdownRemoteOutput();
+            finishRemoteOutput();
             checkClose();
+            adjustInterests();
             return;
         }
-        if (toRemote.position() > 0) {
-            proxy.updateInterests(remote, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        if (read > 0 && toRemote.writeTo(remote)) {
+            close();
+            return;
         }
+        adjustInterests();
     }
 
     public void handleClientWrite() throws IOException {
         if (!client.isOpen()) return;
-        if (flushBuffer(client, toClient)) {
-            proxy.closeSession(this);
+        if (flushClient()) {
+            close();
             return;
         }
+        if (remoteInputClosed) {
+            finishClientOutput();
+            checkClose();
+        }
         adjustInterests();
     }
 
-    public void handleRemoteConnect() throws IOException {
-        if (remote == null) return;
-        if (remote.finishConnect()) {
-            sendSuccessReply();
-            state = State.RELAY;
-            adjustInterests();
+    public void handleRemoteConnect(SocketChannel ch) throws IOException {
+        if (state != State.CONNECTING || !attempts.containsKey(ch)) return;
+        try {
+            if (!ch.finishConnect()) return;
+        } catch (IOException e) {
+            InetSocketAddress address = attempts.remove(ch);
+            recordAttemptFailure(address);
+            closeQuietly(ch);
+            connectFailure = Socks5Codec.replyFor(e);
+            if (attempts.isEmpty() || !candidates.isEmpty()) {
+                cancelAttemptTimer();
+                startNextAttempt();
+            }
+            return;
         }
+        onAttemptConnected(ch);
     }
 
     public void handleRemoteRead() throws IOException {
-        int read = readIntoBuffer(remote, toClient);
+        if (state == State.UPSTREAM) {
+            handleUpstreamRead();
+            return;
+        }
+        int allowance = throttle.allowance();
+        if (allowance == 0) {
+            startThrottle();
+            return;
+        }
+        int read = toClient.readFrom(remote, Math.min(allowance, quantum));
+        if (read == RelayBuffer.NO_BUFFER) {
+            remoteReadParked = true;
+            pool.await(this);
+            adjustInterests();
+            return;
+        }
+        lastActivity = reactor.clock();
+        remoteBulk = read >= quantum;
+        if (read > 0) {
+            metrics.countRemoteToClient(traffic, read);
+            consume(read);
+            if (!firstByteSeen) {
+                firstByteSeen = true;
+                metrics.timeToFirstByte.record((System.nanoTime() - requestedAt) / 1000);
+            }
+        }
         if (read == -1) {
             remoteInputClosed = true;
-            shutdownClientOutput();
+            finishClientOutput();
             checkClose();
+            adjustInterests();
             return;
         }
-        if (toClient.position() > 0) {
-            proxy.updateInterests(client, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        if (read > 0 && flushClient()) {
+            close();
+            return;
         }
+        adjustInterests();
     }
 
     public void handleRemoteWrite() throws IOException {
         if (remote == null || !remote.isOpen()) return;
-        if (flushBuffer(remote, toRemote)) {
-            proxy.closeSession(this);
+        if (state == State.UPSTREAM) {
+            if (flushBuffer(remote, upstreamOut)) {
+                upstreamFailed();
+                return;
+            }
+            adjustInterests();
+            return;
+        }
+        if (toRemote.writeTo(remote)) {
+            close();
             return;
         }
+        if (clientInputClosed) {
+            finishRemoteOutput();
+            checkClose();
+        }
         adjustInterests();
     }
 
-    public void onResolved(InetAddress address) throws IOException {
+    @Override
+    public void onResolved(List<InetAddress> addresses) throws IOException {
+        dnsHandle = null;
         if (state != State.RESOLVING) return;
-        InetSocketAddress target = new InetSocketAddress(address, pendingPort);
-        connectRemote(target);
+        AclRules rules = reactor.getAccessControl().rules();
+        List<InetAddress> permitted = new ArrayList<>(addresses.size());
+        for (InetAddress address : addresses) {
+            if (rules.checkAddress(address, pendingPort) != AclRules.Decision.DENY) {
+                permitted.add(address);
+            }
+        }
+        if (permitted.isEmpty()) {
+            deny(pendingHost, pendingPort);
+            return;
+        }
+        connectRemote(permitted, pendingPort);
+    }
+
+    @Override
+    public void onResolveFailed() throws IOException {
+        dnsHandle = null;
+        failConnect(Socks5Codec.REP_HOST_UNREACHABLE);
+    }
+
+    void onDatagram(boolean fromClient, int bytes) {
+        lastActivity = reactor.clock();
+        if (fromClient) {
+            metrics.countClientToRemote(traffic, bytes);
+        } else {
+            metrics.countRemoteToClient(traffic, bytes);
+        }
     }
 
     public void failConnect(byte rep) throws IOException {
         if (state == State.CLOSED) return;
         sendReply(rep, null);
-        flushBuffer(client, toClient);
+        flushBuffer(client, replyBuf);
         close();
     }
 
+    void onBufferAvailable() {
+        clientReadParked = false;
+        remoteReadParked = false;
+        if (state == State.RELAY && protoBuf != null) {
+            forwardEarlyData();
+        }
+        adjustInterests();
+    }
+
     public void close() {
-        state = State.CLOSED;
+        if (state == State.CLOSED) return;
+        setState(State.CLOSED);
+        if (dnsHandle != null) {
+            dnsHandle.cancel();
+            dnsHandle = null;
+        }
+        cancelAttemptTimer();
+        if (deadline != null) {
+            deadline.cancel();
+        }
+        for (SocketChannel ch : attempts.keySet()) {
+            closeQuietly(ch);
+        }
+        attempts.clear();
+        if (udp != null) {
+            udp.close();
+        }
+        closeBindChannel();
+        if (upstream != null) {
+            upstream.release();
+            upstream = null;
+        }
+        if (throttleTimer != null) {
+            throttleTimer.cancel();
+        }
+        throttle.release();
+        toRemote.release();
+        toClient.release();
         try {
             client.close();
         } catch (IOException ignored) { }
@@ -136,162 +346,601 @@ public class SocksSession {
 
     private void tryHandleHandshake() throws IOException {
         protoBuf.flip();
-        if (protoBuf.remaining() < 2) {
+        Socks5Codec.Greeting greeting = Socks5Codec.parseGreeting(protoBuf);
+        if (greeting == null) {
             protoBuf.compact();
             return;
         }
-        byte ver = protoBuf.get();
-        byte nMethods = protoBuf.get();
-        if (ver != 0x05) {
+        protoBuf.compact();
+        if (greeting.version != Socks5Codec.VERSION) {
+            close();
+            return;
+        }
+        byte method = reactor.getCredentials() != null ? Socks5Codec.METHOD_USERNAME_PASSWORD : Socks5Codec.METHOD_NO_AUTH;
+        if (!greeting.offers(method)) {
+            replyBuf.put(Socks5Codec.VERSION).put(Socks5Codec.METHOD_NONE_ACCEPTABLE);
+            flushBuffer(client, replyBuf);
             close();
             return;
         }
-        if (protoBuf.remaining() < nMethods) {
-            protoBuf.position(protoBuf.position() - 2);
+        replyBuf.put(Socks5Codec.VERSION).put(method);
+        setState(method == Socks5Codec.METHOD_NO_AUTH ? State.REQUEST : State.AUTH);
+        reactor.updateInterests(client, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        if (protoBuf.position() > 0) {
+            if (state == State.AUTH) {
+                tryHandleAuth();
+            } else {
+                tryHandleRequest();
+            }
+        }
+    }
+
+    private void tryHandleAuth() throws IOException {
+        if (authPending) return;
+        protoBuf.flip();
+        Socks5Codec.Credentials credentials = Socks5Codec.parseCredentials(protoBuf);
+        if (credentials == null) {
             protoBuf.compact();
             return;
         }
-        boolean noAuth = false;
-        for (int i = 0; i < nMethods; i++) {
-            byte m = protoBuf.get();
-            if (m == 0x00) noAuth = true;
+        protoBuf.compact();
+        if (credentials.version != Socks5Codec.AUTH_VERSION) {
+            close();
+            return;
+        }
+        authPending = true;
+        String user = credentials.username;
+        reactor.getCredentials().verify(user, credentials.password, reactor, ok -> onAuthResult(user, ok));
+        if (authPending) {
+            adjustInterests();
         }
-        protoBuf.clear();
-        if (!noAuth) {
-            byte[] resp = {0x05, (byte) 0xFF};
-            toClient.put(resp);
-            proxy.updateInterests(client, SelectionKey.OP_WRITE);
+    }
+
+    private void onAuthResult(String user, boolean ok) {
+        if (state != State.AUTH) return;
+        authPending = false;
+        replyBuf.put(Socks5Codec.AUTH_VERSION).put(ok ? Socks5Codec.AUTH_SUCCESS : Socks5Codec.AUTH_FAILURE);
+        if (!ok) {
+            metrics.authFailures.increment();
+            if (Log.allow()) {
+                Log.info("Authentication failed for user " + user);
+            }
+            flushBuffer(client, replyBuf);
             close();
             return;
         }
-        byte[] resp = {0x05, 0x00};
-        toClient.put(resp);
-        state = State.REQUEST;
-        proxy.updateInterests(client, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        traffic = metrics.user(user);
+        setState(State.REQUEST);
+        adjustInterests();
+        if (protoBuf.position() > 0) {
+            try {
+                tryHandleRequest();
+            } catch (IOException e) {
+                close();
+            }
+        }
     }
 
     private void tryHandleRequest() throws IOException {
         protoBuf.flip();
-        if (protoBuf.remaining() < 4) {
+        Socks5Codec.Request request = Socks5Codec.parseRequest(protoBuf);
+        if (request == null) {
             protoBuf.compact();
             return;
         }
-        protoBuf.mark();
-        byte ver = protoBuf.get();
-        byte cmd = protoBuf.get();
-        protoBuf.get();
-        byte atyp = protoBuf.get();
-        if (ver != 0x05 || cmd != 0x01) {
-            sendReply((byte) 0x07, null);
+        protoBuf.compact();
+        if (request.version != Socks5Codec.VERSION
+                || (request.command != Socks5Codec.CMD_CONNECT && request.command != Socks5Codec.CMD_BIND
+                && request.command != Socks5Codec.CMD_UDP_ASSOCIATE)) {
+            sendReply(Socks5Codec.REP_COMMAND_NOT_SUPPORTED, null);
+            close();
+            return;
+        }
+        if (!request.hasSupportedAddress()) {
+            sendReply(Socks5Codec.REP_ADDRESS_NOT_SUPPORTED, null);
             close();
             return;
         }
-        String host = null;
-        InetAddress ipv4 = null;
-        if (atyp == 0x01) {
-            if (protoBuf.remaining() < 4 + 2) {
-                protoBuf.reset();
-                protoBuf.compact();
+        if (request.command == Socks5Codec.CMD_UDP_ASSOCIATE) {
+            startUdpAssociation(request.port);
+            return;
+        }
+        armDeadline(reactor.getConfig().connectTimeoutMillis);
+        requestedAt = System.nanoTime();
+        AccessControl acl = reactor.getAccessControl();
+        if (request.address != null ? !acl.allowsAddress(request.address, request.port)
+                : !acl.allowsHost(request.host, request.port)) {
+            deny(request.address != null ? request.address.getHostAddress() : request.host, request.port);
+            return;
+        }
+        if (request.command == Socks5Codec.CMD_BIND) {
+            startBind(request);
+            return;
+        }
+        if (reactor.getUpstreams().isEnabled()) {
+            connectUpstream(request);
+            return;
+        }
+        WarmPool.Connection warm = reactor.getWarmPool()
+                .take(request.address != null ? request.address.getHostAddress() : request.host, request.port);
+        if (warm != null) {
+            InetSocketAddress warmAddress = (InetSocketAddress) warm.channel.getRemoteAddress();
+            if (acl.rules().checkAddress(warmAddress.getAddress(), request.port) == AclRules.Decision.DENY) {
+                closeQuietly(warm.channel);
+            } else if (!reactor.getBreaker().allow(warmAddress)) {
+                closeQuietly(warm.channel);
+                if (request.address != null) {
+                    metrics.connectFailures.increment();
+                    failConnect(Socks5Codec.REP_CONNECTION_REFUSED);
+                    return;
+                }
+            } else {
+                warmHit = true;
+                warmEarly = warm.early;
+                attempts.put(warm.channel, warmAddress);
+                reactor.registerRemote(this, warm.channel);
+                setState(State.CONNECTING);
+                connectStartedAt = System.nanoTime();
+                onAttemptConnected(warm.channel);
                 return;
             }
-            byte[] addrBytes = new byte[4];
-            protoBuf.get(addrBytes);
-            ipv4 = InetAddress.getByAddress(addrBytes);
-        } else if (atyp == 0x03) {
-            if (protoBuf.remaining() < 1) {
-                protoBuf.reset();
-                protoBuf.compact();
+        }
+        if (request.address != null) {
+            connectRemote(List.of(request.address), request.port);
+        } else {
+            pendingHost = request.host;
+            pendingPort = request.port;
+            setState(State.RESOLVING);
+            dnsHandle = reactor.resolve(this, request.host);
+        }
+    }
+
+    private void deny(String target, int port) throws IOException {
+        metrics.aclDenied.increment();
+        if (Log.allow()) {
+            Log.info("ACL denied " + target + ":" + port + " for " + client.socket().getInetAddress());
+        }
+        failConnect(Socks5Codec.REP_NOT_ALLOWED);
+    }
+
+    private void startUdpAssociation(int clientPort) throws IOException {
+        try {
+            udp = new UdpAssociation(reactor, this, client, clientPort);
+        } catch (IOException e) {
+            if (Log.allow()) {
+                Log.info("UDP associate failed: " + e);
+            }
+            sendReply(Socks5Codec.REP_GENERAL_FAILURE, null);
+            flushBuffer(client, replyBuf);
+            close();
+            return;
+        }
+        sendReply(Socks5Codec.REP_SUCCEEDED, udp.getBindAddress());
+        setState(State.UDP_ASSOCIATE);
+        lastActivity = reactor.clock();
+        armDeadline(reactor.getConfig().idleTimeoutMillis);
+    }
+
+    private void startBind(Socks5Codec.Request request) throws IOException {
+        InetAddress local = ((InetSocketAddress) client.getLocalAddress()).getAddress();
+        try {
+            bindChannel = ServerSocketChannel.open();
+            bindChannel.configureBlocking(false);
+            bindChannel.bind(new InetSocketAddress(local, 0), 1);
+            reactor.registerBind(this, bindChannel);
+        } catch (IOException e) {
+            if (Log.allow()) {
+                Log.info("BIND failed: " + e);
+            }
+            failConnect(Socks5Codec.REP_GENERAL_FAILURE);
+            return;
+        }
+        bindRequest = request;
+        setState(State.BINDING);
+        sendReply(Socks5Codec.REP_SUCCEEDED, (InetSocketAddress) bindChannel.getLocalAddress());
+    }
+
+    public void handleBindAccept() throws IOException {
+        if (state != State.BINDING) return;
+        SocketChannel inbound;
+        while ((inbound = bindChannel.accept()) != null) {
+            InetSocketAddress peer = (InetSocketAddress) inbound.getRemoteAddress();
+            if (!bindRequest.matchesPeer(peer.getAddress())) {
+                closeQuietly(inbound);
+                continue;
+            }
+            closeBindChannel();
+            inbound.configureBlocking(false);
+            remote = inbound;
+            reactor.registerRemote(this, remote);
+            sendReply(Socks5Codec.REP_SUCCEEDED, peer);
+            startRelay(requestedAt);
+            return;
+        }
+    }
+
+    private void closeBindChannel() {
+        if (bindChannel == null) return;
+        try {
+            bindChannel.close();
+        } catch (IOException ignored) { }
+        bindChannel = null;
+    }
+
+    private void connectUpstream(Socks5Codec.Request request) throws IOException {
+        upstreamRequest = request;
+        connectStartedAt = System.nanoTime();
+        connectNextUpstream();
+    }
+
+    private void connectNextUpstream() throws IOException {
+        List<UpstreamPool.Upstream> chosen = reactor.getUpstreams().candidates();
+        if (failedUpstreams != null && !chosen.isEmpty()) {
+            chosen.removeAll(failedUpstreams);
+        }
+        if (chosen.isEmpty()) {
+            metrics.connectFailures.increment();
+            failConnect(Socks5Codec.REP_GENERAL_FAILURE);
+            return;
+        }
+        upstream = chosen.get(0);
+        upstream.acquire();
+        candidates.clear();
+        for (UpstreamPool.Upstream u : chosen) {
+            candidates.add(u.address);
+        }
+        setState(State.CONNECTING);
+        startNextAttempt();
+    }
+
+    private void startUpstreamHandshake(InetSocketAddress address) throws IOException {
+        UpstreamPool.Upstream winner = reactor.getUpstreams().find(address);
+        if (winner != upstream) {
+            upstream.release();
+            upstream = winner;
+            upstream.acquire();
+        }
+        upstreamOut = ByteBuffer.allocate(UPSTREAM_BUFFER);
+        upstreamIn = ByteBuffer.allocate(UPSTREAM_BUFFER);
+        upstreamOut.put(Socks5Codec.VERSION).put((byte) 1).put(Socks5Codec.METHOD_NO_AUTH);
+        setState(State.UPSTREAM);
+        if (flushBuffer(remote, upstreamOut)) {
+            upstreamFailed();
+            return;
+        }
+        adjustInterests();
+    }
+
+    private void handleUpstreamRead() throws IOException {
+        try {
+            if (remote.read(upstreamIn) == -1) {
+                upstreamFailed();
+                return;
+            }
+        } catch (IOException e) {
+            upstreamFailed();
+            return;
+        }
+        upstreamIn.flip();
+        if (!upstreamMethodAccepted) {
+            if (upstreamIn.remaining() < 2) {
+                upstreamIn.compact();
                 return;
             }
-            int len = protoBuf.get() & 0xFF;
-            if (protoBuf.remaining() < len + 2) {
-                protoBuf.reset();
-                protoBuf.compact();
+            if (upstreamIn.get() != Socks5Codec.VERSION || upstreamIn.get() != Socks5Codec.METHOD_NO_AUTH) {
+                upstreamFailed();
                 return;
             }
-            byte[] domainBytes = new byte[len];
-            protoBuf.get(domainBytes);
-            host = new String(domainBytes);
+            upstreamMethodAccepted = true;
+            Socks5Codec.writeConnect(upstreamOut, upstreamRequest.address, upstreamRequest.host, upstreamRequest.port);
+            if (flushBuffer(remote, upstreamOut)) {
+                upstreamFailed();
+                return;
+            }
+        }
+        Socks5Codec.Reply reply = Socks5Codec.parseReply(upstreamIn);
+        if (reply == null) {
+            upstreamIn.compact();
+            adjustInterests();
+            return;
+        }
+        if (reply.version != Socks5Codec.VERSION) {
+            upstreamFailed();
+            return;
+        }
+        upstream.recordSuccess();
+        if (reply.rep != Socks5Codec.REP_SUCCEEDED) {
+            metrics.connectFailures.increment();
+            failConnect(reply.rep);
+            return;
+        }
+        int early = upstreamIn.remaining();
+        if (early > 0) {
+            if (!toClient.put(upstreamIn)) {
+                failConnect(Socks5Codec.REP_GENERAL_FAILURE);
+                return;
+            }
+            metrics.countRemoteToClient(traffic, early);
+        }
+        upstreamRequest = null;
+        upstreamOut = null;
+        upstreamIn = null;
+        sendReply(Socks5Codec.REP_SUCCEEDED, reply.bind != null ? reply.bind : (InetSocketAddress) remote.getLocalAddress());
+        startRelay(connectStartedAt);
+    }
+
+    private void upstreamFailed() throws IOException {
+        upstream.recordHandshakeFailure();
+        if (failedUpstreams == null) {
+            failedUpstreams = new ArrayList<>(2);
+        }
+        failedUpstreams.add(upstream);
+        upstream.release();
+        upstream = null;
+        closeQuietly(remote);
+        remote = null;
+        upstreamOut = null;
+        upstreamIn = null;
+        upstreamMethodAccepted = false;
+        connectNextUpstream();
+    }
+
+    private void recordAttemptFailure(InetSocketAddress address) {
+        if (upstreamRequest != null) {
+            UpstreamPool.Upstream u = reactor.getUpstreams().find(address);
+            if (u != null) {
+                u.recordFailure();
+            }
         } else {
-            sendReply((byte) 0x08, null);
+            reactor.getAddressHealth().recordFailure(address.getAddress());
+            reactor.getBreaker().recordFailure(address);
+        }
+    }
+
+    private boolean isAwaitingRemote() {
+        return state == State.RESOLVING || state == State.CONNECTING || state == State.UPSTREAM || state == State.BINDING;
+    }
+
+    private void connectRemote(List<InetAddress> addresses, int port) throws IOException {
+        candidates.clear();
+        for (InetAddress address : reactor.getAddressHealth().connectOrder(addresses)) {
+            candidates.add(new InetSocketAddress(address, port));
+        }
+        setState(State.CONNECTING);
+        connectStartedAt = System.nanoTime();
+        startNextAttempt();
+    }
+
+    private void startNextAttempt() throws IOException {
+        while (!candidates.isEmpty()) {
+            InetSocketAddress address = candidates.poll();
+            if (upstreamRequest == null && !reactor.getBreaker().allow(address)) {
+                connectFailure = Socks5Codec.REP_CONNECTION_REFUSED;
+                continue;
+            }
+            SocketChannel ch = SocketChannel.open();
+            boolean connected;
+            try {
+                ch.configureBlocking(false);
+                connected = ch.connect(address);
+                reactor.registerRemote(this, ch);
+            } catch (IOException e) {
+                closeQuietly(ch);
+                recordAttemptFailure(address);
+                connectFailure = Socks5Codec.replyFor(e);
+                continue;
+            }
+            attempts.put(ch, address);
+            if (connected) {
+                onAttemptConnected(ch);
+            } else if (!candidates.isEmpty()) {
+                attemptTimer = reactor.getTimers().schedule(reactor.getConfig().connectAttemptDelayMillis,
+                        this::onAttemptDelayElapsed);
+            }
+            return;
+        }
+        if (attempts.isEmpty()) {
+            metrics.connectFailures.increment();
+            failConnect(connectFailure);
+        }
+    }
+
+    private void onAttemptDelayElapsed() {
+        attemptTimer = null;
+        if (state != State.CONNECTING) return;
+        try {
+            startNextAttempt();
+        } catch (IOException e) {
+            if (Log.allow()) {
+                Log.info("Connect attempt failed: " + e);
+            }
             close();
+        }
+    }
+
+    private void onAttemptConnected(SocketChannel winner) throws IOException {
+        cancelAttemptTimer();
+        candidates.clear();
+        InetSocketAddress address = attempts.get(winner);
+        for (SocketChannel ch : attempts.keySet()) {
+            if (ch != winner) {
+                closeQuietly(ch);
+            }
+        }
+        attempts.clear();
+        remote = winner;
+        if (upstreamRequest != null) {
+            startUpstreamHandshake(address);
             return;
         }
-        if (protoBuf.remaining() < 2) {
-            protoBuf.reset();
+        reactor.getAddressHealth().recordSuccess(address.getAddress());
+        reactor.getBreaker().recordSuccess(address, warmHit ? 0 : (System.nanoTime() - connectStartedAt) / 1000);
+        if (warmEarly != null) {
+            int early = warmEarly.remaining();
+            if (!toClient.put(warmEarly)) {
+                failConnect(Socks5Codec.REP_GENERAL_FAILURE);
+                return;
+            }
+            metrics.countRemoteToClient(traffic, early);
+            warmEarly = null;
+        }
+        sendSuccessReply();
+        startRelay(connectStartedAt);
+    }
+
+    private void startRelay(long since) {
+        setState(State.RELAY);
+        metrics.connectLatency.record((System.nanoTime() - since) / 1000);
+        lastActivity = reactor.clock();
+        armDeadline(reactor.getConfig().idleTimeoutMillis);
+        forwardEarlyData();
+        adjustInterests();
+    }
+
+    private void forwardEarlyData() {
+        protoBuf.flip();
+        int early = protoBuf.remaining();
+        if (early > 0 && !toRemote.put(protoBuf)) {
             protoBuf.compact();
+            pool.await(this);
             return;
         }
-        int port = ((protoBuf.get() & 0xFF) << 8) | (protoBuf.get() & 0xFF);
-        protoBuf.clear();
+        protoBuf = null;
+        if (early > 0) {
+            metrics.countClientToRemote(traffic, early);
+            consume(early);
+            if (toRemote.writeTo(remote)) {
+                close();
+                return;
+            }
+        }
+        if (clientInputClosed) {
+            finishRemoteOutput();
+        }
+    }
+
+    private void setState(State next) {
+        if (state == next) return;
+        metrics.transition(state, next);
+        state = next;
+    }
 
-        if (ipv4 != null) {
-            connectRemote(new InetSocketAddress(ipv4, port));
+    private void armDeadline(long timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            if (deadline != null) {
+                deadline.cancel();
+            }
+            return;
+        }
+        if (deadline == null) {
+            deadline = reactor.getTimers().schedule(timeoutMillis, this::onDeadline);
         } else {
-            pendingHost = host;
-            pendingPort = port;
-            state = State.RESOLVING;
-            proxy.sendDnsQuery(this, host);
+            reactor.getTimers().reschedule(deadline, timeoutMillis);
         }
     }
 
-    private void connectRemote(InetSocketAddress address) throws IOException {
-        remote = SocketChannel.open();
-        remote.configureBlocking(false);
-        remote.connect(address);
-        state = State.CONNECTING;
-        proxy.registerRemote(this, remote);
+    private void onDeadline() {
+        if (state != State.RELAY && state != State.UDP_ASSOCIATE) {
+            metrics.sessionTimeouts.increment();
+        }
+        switch (state) {
+            case HANDSHAKE:
+            case AUTH:
+            case REQUEST:
+                close();
+                break;
+            case RESOLVING:
+            case CONNECTING:
+            case UPSTREAM:
+            case BINDING:
+                if (state == State.CONNECTING && upstreamRequest == null) {
+                    for (InetSocketAddress address : attempts.values()) {
+                        reactor.getBreaker().recordFailure(address);
+                    }
+                }
+                try {
+                    sendReply((byte) 0x04, null);
+                    flushBuffer(client, replyBuf);
+                } catch (IOException ignored) { }
+                close();
+                break;
+            case RELAY:
+            case UDP_ASSOCIATE:
+                long idle = reactor.clock() - lastActivity;
+                long limit = reactor.getConfig().idleTimeoutMillis;
+                if (idle < limit) {
+                    reactor.getTimers().reschedule(deadline, limit - idle);
+                } else {
+                    metrics.sessionTimeouts.increment();
+                    close();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void consume(int bytes) {
+        if (throttle.isUnlimited()) return;
+        throttle.consume(bytes);
+        if (throttle.allowance() == 0) {
+            startThrottle();
+        }
+    }
+
+    private void startThrottle() {
+        if (!throttled) {
+            throttled = true;
+            metrics.throttled.increment();
+        }
+        long wait = Math.max(1, throttle.millisUntilReady());
+        if (throttleTimer == null) {
+            throttleTimer = reactor.getTimers().schedule(wait, this::onThrottleElapsed);
+        } else if (!throttleTimer.isPending()) {
+            reactor.getTimers().reschedule(throttleTimer, wait);
+        }
+        adjustInterests();
+    }
+
+    private void onThrottleElapsed() {
+        if (state == State.CLOSED) return;
+        if (throttle.allowance() == 0) {
+            startThrottle();
+            return;
+        }
+        throttled = false;
+        adjustInterests();
+    }
+
+    private void cancelAttemptTimer() {
+        if (attemptTimer != null) {
+            attemptTimer.cancel();
+            attemptTimer = null;
+        }
+    }
+
+    private static void closeQuietly(SocketChannel ch) {
+        try {
+            ch.close();
+        } catch (IOException ignored) { }
     }
 
     private void sendSuccessReply() throws IOException {
-        SocketAddress local = remote.getLocalAddress();
-        InetSocketAddress isa = (InetSocketAddress) local;
-        byte[] addr = ((Inet4Address) isa.getAddress()).getAddress();
-        byte[] resp = new byte[10];
-        resp[0] = 0x05;
-        resp[1] = 0x00;
-        resp[2] = 0x00;
-        resp[3] = 0x01;
-        System.arraycopy(addr, 0, resp, 4, 4);
-        resp[8] = (byte) (isa.getPort() >> 8);
-        resp[9] = (byte) (isa.getPort());
-        toClient.put(resp);
-        proxy.updateInterests(client, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        sendReply((byte) 0x00, (InetSocketAddress) remote.getLocalAddress());
     }
 
     private void sendReply(byte rep, InetSocketAddress bind) throws IOException {
-        byte[] resp = new byte[10];
-        resp[0] = 0x05;
-        resp[1] = rep;
-        resp[2] = 0x00;
-        resp[3] = 0x01;
-        byte[] addr = {0, 0, 0, 0};
-        int port = 0;
-        if (bind != null) {
-            addr = ((Inet4Address) bind.getAddress()).getAddress();
-            port = bind.getPort();
-        }
-        System.arraycopy(addr, 0, resp, 4, 4);
-        resp[8] = (byte) (port >> 8);
-        resp[9] = (byte) (port);
-        toClient.put(resp);
-        proxy.updateInterests(client, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-    }
-
-    private int readIntoBuffer(SocketChannel ch, ByteBuffer target) throws IOException {
-        ioBuf.clear();
-        int read = ch.read(ioBuf);
-        if (read > 0) {
-            ioBuf.flip();
-            while (ioBuf.hasRemaining() && target.hasRemaining()) {
-                target.put(ioBuf.get());
-            }
-            adjustInterests();
-        }
-        return read;
+        Socks5Codec.writeReply(replyBuf, rep, bind);
+        reactor.updateInterests(client, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private boolean flushClient() throws IOException {
+        if (flushBuffer(client, replyBuf)) return true;
+        if (replyBuf.position() > 0) return false;
+        return toClient.writeTo(client);
     }
 
-    private boolean flushBuffer(SocketChannel ch, ByteBuffer buffer) throws IOException {
+    private boolean flushBuffer(SocketChannel ch, ByteBuffer buffer) {
         if (!ch.isOpen()) return true;
         buffer.flip();
         try {
@@ -309,29 +958,42 @@ public class SocksSession {
 
     private void adjustInterests() {
         if (state == State.CLOSED) return;
+        toRemote.recycle();
+        toClient.recycle();
         int clientOps = 0;
         int remoteOps = 0;
 
-        boolean canReadClient = toRemote.hasRemaining() || state != State.RELAY;
-        boolean canReadRemote = toClient.hasRemaining() || state != State.RELAY;
+        boolean canReadClient;
+        if (state == State.RELAY) {
+            canReadClient = protoBuf == null && !clientInputClosed && !clientReadParked && !throttled && toRemote.hasSpace();
+        } else if (isAwaitingRemote()) {
+            canReadClient = !clientInputClosed && protoBuf.hasRemaining();
+        } else {
+            canReadClient = !authPending;
+        }
+        boolean canReadRemote = state != State.RELAY
+                || (!remoteInputClosed && !remoteReadParked && !throttled && toClient.hasSpace());
 
         if (canReadClient) clientOps |= SelectionKey.OP_READ;
-        if (toClient.position() > 0) clientOps |= SelectionKey.OP_WRITE;
+        if (replyBuf.position() > 0 || toClient.hasPending()) clientOps |= SelectionKey.OP_WRITE;
 
         if (remote != null && remote.isConnectionPending()) {
             remoteOps = SelectionKey.OP_CONNECT;
+        } else if (state == State.UPSTREAM) {
+            remoteOps = upstreamOut.position() > 0 ? SelectionKey.OP_WRITE : SelectionKey.OP_READ;
         } else if (remote != null && remote.isOpen()) {
             if (canReadRemote) remoteOps |= SelectionKey.OP_READ;
-            if (toRemote.position() > 0) remoteOps |= SelectionKey.OP_WRITE;
+            if (toRemote.hasPending()) remoteOps |= SelectionKey.OP_WRITE;
         }
 
-        proxy.updateInterests(client, clientOps);
+        reactor.updateInterests(client, clientOps);
         if (remote != null && remote.isOpen()) {
-            proxy.updateInterests(remote, remoteOps);
+            reactor.updateInterests(remote, remoteOps);
         }
     }
 
-    private void shutdownRemoteOutput() {
+    private void finishRemoteOutput() {
+        if (toRemote.hasPending()) return;
         if (remote != null && remote.isOpen()) {
             try {
                 remote.shutdownOutput();
@@ -339,7 +1001,8 @@ public class SocksSession {
         }
     }
 
-    private void shutdownClientOutput() {
+    private void finishClientOutput() {
+        if (replyBuf.position() > 0 || toClient.hasPending()) return;
         if (client.isOpen()) {
             try {
                 client.shutdownOutput();
@@ -348,10 +1011,10 @@ public class SocksSession {
     }
 
     private void checkClose() {
-        boolean clientDone = clientInputClosed && toClient.position() == 0;
-        boolean remoteDone = remoteInputClosed && toRemote.position() == 0;
+        boolean clientDone = clientInputClosed && protoBuf == null && !toRemote.hasPending();
+        boolean remoteDone = remoteInputClosed && replyBuf.position() == 0 && !toClient.hasPending();
         if (clientDone && remoteDone) {
-            proxy.closeSession(this);
+            close();
         }
     }
 }
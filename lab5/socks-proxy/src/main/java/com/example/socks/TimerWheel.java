@@ -0,0 +1,145 @@
+package com.example.socks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TimerWheel {
+    private final long tickMillis;
+    private final Timeout[] buckets;
+    private final int mask;
+    private final List<Timeout> expired = new ArrayList<>();
+    private long currentTick;
+    private int size;
+
+    public TimerWheel(long tickMillis, int wheelSize, long nowMillis) {
+        if (Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("wheelSize must be a power of two");
+        }
+        this.tickMillis = tickMillis;
+        this.buckets = new Timeout[wheelSize];
+        this.mask = wheelSize - 1;
+        this.currentTick = nowMillis / tickMillis;
+    }
+
+    public Timeout schedule(long delayMillis, Runnable task) {
+        Timeout timeout = new Timeout(this, task);
+        add(timeout, delayMillis);
+        return timeout;
+    }
+
+    public void reschedule(Timeout timeout, long delayMillis) {
+        timeout.cancel();
+        timeout.wheel = this;
+        add(timeout, delayMillis);
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long millisUntilNextTick(long nowMillis) {
+        long next = (currentTick + 1) * tickMillis;
+        return Math.max(1, next - nowMillis);
+    }
+
+    public void advance(long nowMillis) {
+        long target = nowMillis / tickMillis;
+        while (currentTick < target && size > 0) {
+            currentTick++;
+            expire((int) (currentTick & mask));
+        }
+        if (currentTick < target) {
+            currentTick = target;
+        }
+    }
+
+    private void add(Timeout timeout, long delayMillis) {
+        long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+        long deadline = currentTick + ticks;
+        timeout.rounds = (ticks - 1) / buckets.length;
+        int index = (int) (deadline & mask);
+        timeout.bucket = index;
+        timeout.linked = true;
+        timeout.next = buckets[index];
+        timeout.prev = null;
+        if (buckets[index] != null) {
+            buckets[index].prev = timeout;
+        }
+        buckets[index] = timeout;
+        size++;
+    }
+
+    private void expire(int index) {
+        Timeout t = buckets[index];
+        while (t != null) {
+            Timeout next = t.next;
+            if (t.rounds <= 0) {
+                unlink(t);
+                expired.add(t);
+            } else {
+                t.rounds--;
+            }
+            t = next;
+        }
+        for (int i = 0; i < expired.size(); i++) {
+            Timeout timeout = expired.get(i);
+            if (timeout.wheel == null || timeout.linked) {
+                continue;
+            }
+            timeout.wheel = null;
+            try {
+                timeout.task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        expired.clear();
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.linked = false;
+        size--;
+    }
+
+    public static final class Timeout {
+        private TimerWheel wheel;
+        private final Runnable task;
+        private Timeout prev;
+        private Timeout next;
+        private int bucket;
+        private long rounds;
+        private boolean linked;
+
+        private Timeout(TimerWheel wheel, Runnable task) {
+            this.wheel = wheel;
+            this.task = task;
+        }
+
+        public boolean isPending() {
+            return wheel != null;
+        }
+
+        public void cancel() {
+            if (wheel != null) {
+                if (linked) {
+                    wheel.unlink(this);
+                }
+                wheel = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.socks;
+
+public class TokenBucket {
+    private final double bytesPerMilli;
+    private final double burst;
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(long bytesPerSecond, long burst) {
+        this.bytesPerMilli = bytesPerSecond / 1000.0;
+        this.burst = burst;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public synchronized long available() {
+        refill();
+        return tokens <= 0 ? 0 : (long) tokens;
+    }
+
+    public synchronized void consume(long bytes) {
+        refill();
+        tokens -= bytes;
+    }
+
+    public synchronized long millisUntilAvailable(long bytes) {
+        refill();
+        double wanted = Math.min(bytes, burst);
+        if (tokens >= wanted) return 0;
+        return (long) Math.ceil((wanted - tokens) / bytesPerMilli);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) / 1_000_000.0 * bytesPerMilli);
+        lastRefill = now;
+    }
+}
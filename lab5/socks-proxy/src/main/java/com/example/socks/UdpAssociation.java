@@ -0,0 +1,350 @@
+package com.example.socks;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class UdpAssociation {
+    static final int MAX_HEADER = 4 + 16 + 2;
+    static final int MAX_DATAGRAM = 65536;
+    private static final int MAX_DATAGRAMS_PER_READ = 64;
+    private static final int MAX_TARGETS = 16;
+    private static final int MAX_SOURCES = 16;
+    private static final int MAX_PENDING = 32;
+
+    private final Reactor reactor;
+    private final SocksSession session;
+    private final Metrics metrics;
+    private final DatagramChannel clientSide;
+    private final DatagramChannel remoteSide;
+    private final InetAddress clientAddress;
+    private final int clientPort;
+    private InetSocketAddress clientUdpAddress;
+
+    private final Target[] targets = new Target[MAX_TARGETS];
+    private int targetCount;
+    private long targetUses;
+    private int pending;
+
+    private final Map<InetSocketAddress, byte[]> sources =
+            new LinkedHashMap<InetSocketAddress, byte[]>(MAX_SOURCES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, byte[]> eldest) {
+                    return size() > MAX_SOURCES;
+                }
+            };
+    private boolean closed;
+
+    public UdpAssociation(Reactor reactor, SocksSession session, SocketChannel control, int clientPort)
+            throws IOException {
+        this.reactor = reactor;
+        this.session = session;
+        this.metrics = reactor.getMetrics();
+        this.clientAddress = ((InetSocketAddress) control.getRemoteAddress()).getAddress();
+        this.clientPort = clientPort;
+        InetAddress local = ((InetSocketAddress) control.getLocalAddress()).getAddress();
+        this.clientSide = DatagramChannel.open();
+        this.remoteSide = DatagramChannel.open();
+        try {
+            clientSide.configureBlocking(false);
+            clientSide.bind(new InetSocketAddress(local, 0));
+            remoteSide.configureBlocking(false);
+            remoteSide.bind(null);
+            reactor.registerDatagram(clientSide, this);
+            reactor.registerDatagram(remoteSide, this);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    SocksSession getSession() {
+        return session;
+    }
+
+    InetSocketAddress getBindAddress() throws IOException {
+        return (InetSocketAddress) clientSide.getLocalAddress();
+    }
+
+    void handleRead(DatagramChannel ch) throws IOException {
+        if (ch == clientSide) {
+            readFromClient();
+        } else {
+            readFromRemote();
+        }
+    }
+
+    void close() {
+        closed = true;
+        for (int i = 0; i < targetCount; i++) {
+            dropPending(targets[i]);
+        }
+        try {
+            clientSide.close();
+        } catch (IOException ignored) { }
+        try {
+            remoteSide.close();
+        } catch (IOException ignored) { }
+    }
+
+    private void readFromClient() throws IOException {
+        ByteBuffer buf = reactor.getDatagramBuffer();
+        for (int i = 0; i < MAX_DATAGRAMS_PER_READ; i++) {
+            buf.clear();
+            InetSocketAddress from = (InetSocketAddress) clientSide.receive(buf);
+            if (from == null) return;
+            buf.flip();
+            Target to = acceptFromClient(from) ? decapsulate(buf) : null;
+            if (to == null || to.denied) {
+                metrics.datagramsDropped.increment();
+                continue;
+            }
+            if (to.address == null) {
+                enqueue(to, buf);
+                continue;
+            }
+            forward(buf, to.address);
+        }
+    }
+
+    private void forward(ByteBuffer buf, InetSocketAddress to) {
+        int n = buf.remaining();
+        if (send(remoteSide, buf, to)) {
+            metrics.datagramsClientToRemote.increment();
+            session.onDatagram(true, n);
+        }
+    }
+
+    private void enqueue(Target target, ByteBuffer buf) throws IOException {
+        if (pending >= MAX_PENDING) {
+            metrics.datagramsDropped.increment();
+        } else {
+            ByteBuffer copy = ByteBuffer.allocate(buf.remaining());
+            copy.put(buf).flip();
+            target.queued.add(copy);
+            pending++;
+        }
+        if (!target.resolving) {
+            target.resolving = true;
+            reactor.resolve(new PendingName(target), target.host());
+        }
+    }
+
+    private void dropPending(Target target) {
+        while (target.queued.poll() != null) {
+            pending--;
+            metrics.datagramsDropped.increment();
+        }
+    }
+
+    private void readFromRemote() throws IOException {
+        ByteBuffer buf = reactor.getDatagramBuffer();
+        for (int i = 0; i < MAX_DATAGRAMS_PER_READ; i++) {
+            buf.clear();
+            buf.position(MAX_HEADER);
+            InetSocketAddress from = (InetSocketAddress) remoteSide.receive(buf);
+            if (from == null) return;
+            if (clientUdpAddress == null) {
+                metrics.datagramsDropped.increment();
+                continue;
+            }
+            int end = buf.position();
+            byte[] header = encapsulate(from);
+            buf.position(MAX_HEADER - header.length);
+            buf.put(header);
+            buf.position(MAX_HEADER - header.length);
+            buf.limit(end);
+            if (send(clientSide, buf, clientUdpAddress)) {
+                metrics.datagramsRemoteToClient.increment();
+                session.onDatagram(false, end - MAX_HEADER);
+            }
+        }
+    }
+
+    private boolean send(DatagramChannel ch, ByteBuffer buf, InetSocketAddress to) {
+        try {
+            if (ch.send(buf, to) > 0) {
+                return true;
+            }
+        } catch (IOException e) {
+            if (!ch.isOpen()) {
+                return false;
+            }
+        }
+        metrics.datagramsDropped.increment();
+        return false;
+    }
+
+    private boolean acceptFromClient(InetSocketAddress from) {
+        if (clientUdpAddress != null) {
+            return clientUdpAddress.equals(from);
+        }
+        if (!clientAddress.equals(from.getAddress())) return false;
+        if (clientPort != 0 && clientPort != from.getPort()) return false;
+        clientUdpAddress = from;
+        return true;
+    }
+
+    private Target decapsulate(ByteBuffer buf) throws IOException {
+        int p = buf.position();
+        if (buf.remaining() < 5 || buf.get(p + 2) != 0) {
+            return null;
+        }
+        byte atyp = buf.get(p + 3);
+        int addrLen;
+        if (atyp == Socks5Codec.ATYP_IPV4) {
+            addrLen = 4;
+        } else if (atyp == Socks5Codec.ATYP_IPV6) {
+            addrLen = 16;
+        } else if (atyp == Socks5Codec.ATYP_DOMAIN) {
+            addrLen = 1 + (buf.get(p + 4) & 0xFF);
+        } else {
+            return null;
+        }
+        int headerLen = 4 + addrLen + 2;
+        if (buf.remaining() < headerLen) {
+            return null;
+        }
+        Target to = lookupTarget(buf, p + 3, 1 + addrLen + 2);
+        buf.position(p + headerLen);
+        return to;
+    }
+
+    private Target lookupTarget(ByteBuffer buf, int offset, int length) throws IOException {
+        for (int i = 0; i < targetCount; i++) {
+            if (targets[i].matches(buf, offset, length)) {
+                targets[i].lastUsed = ++targetUses;
+                return targets[i];
+            }
+        }
+        Target target = new Target(buf, offset, length);
+        target.lastUsed = ++targetUses;
+        if (targetCount < MAX_TARGETS) {
+            targets[targetCount++] = target;
+        } else {
+            int eldest = 0;
+            for (int i = 1; i < MAX_TARGETS; i++) {
+                if (targets[i].lastUsed < targets[eldest].lastUsed) {
+                    eldest = i;
+                }
+            }
+            targets[eldest] = target;
+        }
+        if (target.key[0] != Socks5Codec.ATYP_DOMAIN) {
+            byte[] addr = new byte[length - 3];
+            System.arraycopy(target.key, 1, addr, 0, addr.length);
+            InetAddress address = InetAddress.getByAddress(addr);
+            if (!reactor.getAccessControl().allowsAddress(address, target.port)) {
+                metrics.aclDenied.increment();
+                target.denied = true;
+            } else {
+                target.address = new InetSocketAddress(address, target.port);
+            }
+        } else if (!reactor.getAccessControl().allowsHost(target.host(), target.port)) {
+            metrics.aclDenied.increment();
+            target.denied = true;
+        }
+        return target;
+    }
+
+    private byte[] encapsulate(InetSocketAddress from) {
+        byte[] header = sources.get(from);
+        if (header != null) return header;
+        byte[] addr = from.getAddress().getAddress();
+        header = new byte[4 + addr.length + 2];
+        header[3] = addr.length == 16 ? Socks5Codec.ATYP_IPV6 : Socks5Codec.ATYP_IPV4;
+        System.arraycopy(addr, 0, header, 4, addr.length);
+        header[4 + addr.length] = (byte) (from.getPort() >> 8);
+        header[5 + addr.length] = (byte) from.getPort();
+        sources.put(from, header);
+        return header;
+    }
+
+    private static final class Target {
+        private final byte[] key;
+        private final int port;
+        private final ArrayDeque<ByteBuffer> queued = new ArrayDeque<>();
+        private InetSocketAddress address;
+        private boolean denied;
+        private boolean resolving;
+        private long lastUsed;
+
+        private Target(ByteBuffer buf, int offset, int length) {
+            key = new byte[length];
+            for (int i = 0; i < length; i++) {
+                key[i] = buf.get(offset + i);
+            }
+            port = ((key[length - 2] & 0xFF) << 8) | (key[length - 1] & 0xFF);
+        }
+
+        private boolean matches(ByteBuffer buf, int offset, int length) {
+            if (length != key.length) return false;
+            for (int i = 0; i < length; i++) {
+                if (key[i] != buf.get(offset + i)) return false;
+            }
+            return true;
+        }
+
+        private String host() {
+            return new String(key, 2, key.length - 4, StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final class PendingName implements DnsResolver.Waiter {
+        private final Target target;
+
+        private PendingName(Target target) {
+            this.target = target;
+        }
+
+        @Override
+        public void onResolved(List<InetAddress> addresses) {
+            target.resolving = false;
+            if (closed) {
+                dropPending(target);
+                return;
+            }
+            AclRules rules = reactor.getAccessControl().rules();
+            InetAddress chosen = null;
+            for (InetAddress address : addresses) {
+                if (rules.checkAddress(address, target.port) == AclRules.Decision.DENY) continue;
+                if (chosen == null || (address instanceof Inet4Address && !(chosen instanceof Inet4Address))) {
+                    chosen = address;
+                }
+            }
+            if (chosen == null) {
+                metrics.aclDenied.increment();
+                target.denied = true;
+                dropPending(target);
+                return;
+            }
+            target.address = new InetSocketAddress(chosen, target.port);
+            ByteBuffer buf;
+            while ((buf = target.queued.poll()) != null) {
+                pending--;
+                forward(buf, target.address);
+            }
+        }
+
+        @Override
+        public void onResolveFailed() {
+            target.resolving = false;
+            dropPending(target);
+        }
+
+        @Override
+        public void close() {
+            target.resolving = false;
+            dropPending(target);
+        }
+    }
+}
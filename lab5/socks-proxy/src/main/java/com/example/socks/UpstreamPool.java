@@ -0,0 +1,189 @@
+package com.example.socks;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class UpstreamPool {
+    enum Balance {WRR, LEAST_CONN}
+
+    private static final int PASSIVE_FAILURE_THRESHOLD = 3;
+
+    private final List<Upstream> upstreams = new ArrayList<>();
+    private final Balance balance;
+    private final long checkIntervalMillis;
+    private final int checkTimeoutMillis;
+
+    public UpstreamPool(ProxyConfig config) {
+        this.balance = config.upstreamBalance;
+        this.checkIntervalMillis = config.upstreamCheckIntervalMillis;
+        this.checkTimeoutMillis = config.upstreamCheckTimeoutMillis;
+        for (int i = 0; i < config.upstreams.size(); i++) {
+            InetSocketAddress address = config.upstreams.get(i);
+            InetSocketAddress resolved = new InetSocketAddress(address.getHostString(), address.getPort());
+            if (resolved.isUnresolved()) {
+                throw new IllegalArgumentException("cannot resolve upstream " + address.getHostString());
+            }
+            upstreams.add(new Upstream(resolved, config.upstreamWeights.get(i)));
+        }
+        if (checkIntervalMillis > 0) {
+            for (Upstream u : upstreams) {
+                Thread checker = new Thread(() -> checkLoop(u), "upstream-health-" + u.address);
+                checker.setDaemon(true);
+                checker.start();
+            }
+        }
+    }
+
+    boolean isEnabled() {
+        return !upstreams.isEmpty();
+    }
+
+    List<Upstream> candidates() {
+        List<Upstream> healthy = new ArrayList<>(upstreams.size());
+        for (Upstream u : upstreams) {
+            if (u.healthy) {
+                healthy.add(u);
+            }
+        }
+        if (healthy.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Upstream first = balance == Balance.LEAST_CONN ? leastConnections(healthy) : weightedRoundRobin(healthy);
+        healthy.remove(first);
+        healthy.add(0, first);
+        return healthy;
+    }
+
+    Upstream find(InetSocketAddress address) {
+        for (Upstream u : upstreams) {
+            if (u.address.equals(address)) return u;
+        }
+        return null;
+    }
+
+    void appendTo(StringBuilder out) {
+        for (Upstream u : upstreams) {
+            String label = "{upstream=\"" + u.address.getHostString() + ":" + u.address.getPort() + "\"}";
+            Metrics.line(out, "socks_upstream_healthy" + label, u.healthy ? 1 : 0);
+            Metrics.line(out, "socks_upstream_active" + label, u.active.get());
+            Metrics.line(out, "socks_upstream_failures_total" + label, u.failuresTotal.get());
+        }
+    }
+
+    private synchronized Upstream weightedRoundRobin(List<Upstream> healthy) {
+        int total = 0;
+        Upstream best = null;
+        for (Upstream u : healthy) {
+            u.currentWeight += u.weight;
+            total += u.weight;
+            if (best == null || u.currentWeight > best.currentWeight) {
+                best = u;
+            }
+        }
+        best.currentWeight -= total;
+        return best;
+    }
+
+    private static Upstream leastConnections(List<Upstream> healthy) {
+        Upstream best = null;
+        long bestActive = 0;
+        for (Upstream u : healthy) {
+            long active = u.active.get();
+            if (best == null || active * best.weight < bestActive * u.weight) {
+                best = u;
+                bestActive = active;
+            }
+        }
+        return best;
+    }
+
+    private void checkLoop(Upstream u) {
+        while (true) {
+            try {
+                Thread.sleep(checkIntervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (probe(u.address)) {
+                u.recordSuccess();
+            } else {
+                u.markDown("health check failed");
+            }
+        }
+    }
+
+    private boolean probe(InetSocketAddress address) {
+        try (Socket socket = new Socket()) {
+            socket.connect(address, checkTimeoutMillis);
+            socket.setSoTimeout(checkTimeoutMillis);
+            OutputStream out = socket.getOutputStream();
+            out.write(new byte[]{Socks5Codec.VERSION, 1, Socks5Codec.METHOD_NO_AUTH});
+            byte[] reply = new byte[2];
+            new DataInputStream(socket.getInputStream()).readFully(reply);
+            return reply[0] == Socks5Codec.VERSION && reply[1] == Socks5Codec.METHOD_NO_AUTH;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    static final class Upstream {
+        final InetSocketAddress address;
+        final int weight;
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private final AtomicInteger failuresTotal = new AtomicInteger();
+        private volatile boolean healthy = true;
+        private int currentWeight;
+
+        private Upstream(InetSocketAddress address, int weight) {
+            this.address = address;
+            this.weight = weight;
+        }
+
+        void acquire() {
+            active.incrementAndGet();
+        }
+
+        void release() {
+            active.decrementAndGet();
+        }
+
+        void recordSuccess() {
+            consecutiveFailures.set(0);
+            if (!healthy) {
+                healthy = true;
+                if (Log.allow()) {
+                    Log.info("Upstream " + address + " is healthy again");
+                }
+            }
+        }
+
+        void recordFailure() {
+            failuresTotal.incrementAndGet();
+            if (consecutiveFailures.incrementAndGet() >= PASSIVE_FAILURE_THRESHOLD) {
+                markDown(PASSIVE_FAILURE_THRESHOLD + " consecutive failures");
+            }
+        }
+
+        void recordHandshakeFailure() {
+            failuresTotal.incrementAndGet();
+            markDown("handshake failed");
+        }
+
+        private void markDown(String reason) {
+            if (healthy) {
+                healthy = false;
+                if (Log.allow()) {
+                    Log.info("Upstream " + address + " marked down: " + reason);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.socks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+class VectoredRelayBuffer extends RelayBuffer {
+    private final ByteBuffer[] ready;
+    private final ByteBuffer[] scratch;
+    private int count;
+
+    VectoredRelayBuffer(BufferPool pool, int segments) {
+        super(pool);
+        this.ready = new ByteBuffer[segments];
+        this.scratch = new ByteBuffer[segments];
+    }
+
+    @Override
+    int readFrom(SocketChannel src, int maxBytes) throws IOException {
+        int free = ready.length - count;
+        if (free == 0 || maxBytes <= 0) return 0;
+        int segmentSize = pool.getBufferSize();
+        int wanted = Math.min(free, (int) Math.min(Integer.MAX_VALUE, ((long) maxBytes + segmentSize - 1) / segmentSize));
+        int acquired = 0;
+        long budget = maxBytes;
+        while (acquired < wanted) {
+            ByteBuffer seg = pool.acquire();
+            if (seg == null) break;
+            if (budget < seg.remaining()) {
+                seg.limit((int) budget);
+            }
+            budget -= seg.remaining();
+            scratch[acquired++] = seg;
+        }
+        if (acquired == 0) return NO_BUFFER;
+        long read;
+        try {
+            read = src.read(scratch, 0, acquired);
+        } finally {
+            for (int i = 0; i < acquired; i++) {
+                ByteBuffer seg = scratch[i];
+                scratch[i] = null;
+                if (seg.position() > 0) {
+                    seg.flip();
+                    ready[count++] = seg;
+                } else {
+                    pool.release(seg);
+                }
+            }
+        }
+        return (int) read;
+    }
+
+    @Override
+    boolean writeTo(SocketChannel dst) {
+        try {
+            while (count > 0) {
+                long n = dst.write(ready, 0, count);
+                dropDrained();
+                if (n == 0) break;
+            }
+        } catch (IOException e) {
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    boolean put(ByteBuffer src) {
+        if (count == ready.length) return false;
+        ByteBuffer seg = pool.acquire();
+        if (seg == null) return false;
+        if (seg.remaining() < src.remaining()) {
+            pool.release(seg);
+            return false;
+        }
+        seg.put(src);
+        seg.flip();
+        ready[count++] = seg;
+        return true;
+    }
+
+    private void dropDrained() {
+        int drained = 0;
+        while (drained < count && !ready[drained].hasRemaining()) {
+            pool.release(ready[drained]);
+            drained++;
+        }
+        if (drained == 0) return;
+        System.arraycopy(ready, drained, ready, 0, count - drained);
+        for (int i = count - drained; i < count; i++) {
+            ready[i] = null;
+        }
+        count -= drained;
+    }
+
+    @Override
+    boolean hasPending() {
+        return count > 0;
+    }
+
+    @Override
+    boolean hasSpace() {
+        return count < ready.length;
+    }
+
+    @Override
+    void recycle() {
+    }
+
+    @Override
+    void release() {
+        for (int i = 0; i < count; i++) {
+            pool.release(ready[i]);
+            ready[i] = null;
+        }
+        count = 0;
+    }
+}
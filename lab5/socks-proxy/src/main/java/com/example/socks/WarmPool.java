@@ -0,0 +1,261 @@
+package com.example.socks;
+
+import org.xbill.DNS.Address;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class WarmPool {
+    private static final long MAINTENANCE_INTERVAL_MS = 1000;
+    private static final long MAX_IDLE_MS = 30_000;
+    private static final double RATE_SMOOTHING = 0.3;
+
+    private final Reactor reactor;
+    private final Metrics metrics;
+    private final int maxPerDestination;
+    private final Map<String, Destination> destinations = new HashMap<>();
+    private final ByteBuffer probe = ByteBuffer.allocate(1);
+    private boolean stopped;
+
+    public WarmPool(Reactor reactor, ProxyConfig config) {
+        this.reactor = reactor;
+        this.metrics = reactor.getMetrics();
+        this.maxPerDestination = config.warmPoolMax;
+        for (InetSocketAddress target : config.warmPool) {
+            String host = DnsCache.normalize(target.getHostString());
+            destinations.put(key(host, target.getPort()), new Destination(host, target.getPort()));
+        }
+        if (!destinations.isEmpty()) {
+            reactor.getTimers().schedule(MAINTENANCE_INTERVAL_MS, this::maintain);
+        }
+    }
+
+    Connection take(String host, int port) {
+        if (stopped || destinations.isEmpty()) return null;
+        Destination d = destinations.get(key(DnsCache.normalize(host), port));
+        if (d == null) return null;
+        d.requests++;
+        SocketChannel ch;
+        while ((ch = d.poll()) != null) {
+            int read = readProbe(ch);
+            if (read >= 0) {
+                metrics.warmPoolHits.increment();
+                d.fill();
+                ByteBuffer early = null;
+                if (read > 0) {
+                    probe.flip();
+                    early = ByteBuffer.allocate(read);
+                    early.put(probe);
+                    early.flip();
+                }
+                return new Connection(ch, early);
+            }
+            closeQuietly(ch);
+        }
+        metrics.warmPoolMisses.increment();
+        d.fill();
+        return null;
+    }
+
+    void handleConnect(SelectionKey key) {
+        Pending pending = (Pending) key.attachment();
+        Destination d = pending.destination;
+        SocketChannel ch = (SocketChannel) key.channel();
+        d.connecting--;
+        try {
+            if (!ch.finishConnect()) {
+                d.connecting++;
+                return;
+            }
+        } catch (IOException e) {
+            closeQuietly(ch);
+            reactor.getAddressHealth().recordFailure(d.address);
+            d.address = null;
+            return;
+        }
+        if (stopped) {
+            closeQuietly(ch);
+            return;
+        }
+        long elapsed = Reactor.now() - pending.startedAt;
+        d.connectMillis = d.connectMillis == 0 ? Math.max(1, elapsed) : (d.connectMillis * 7 + elapsed) / 8;
+        key.interestOps(0);
+        d.idle.add(new Idle(ch, reactor.clock()));
+    }
+
+    void shutdown() {
+        stopped = true;
+        for (Destination d : destinations.values()) {
+            SocketChannel ch;
+            while ((ch = d.poll()) != null) {
+                closeQuietly(ch);
+            }
+        }
+    }
+
+    private void maintain() {
+        if (stopped) return;
+        long now = reactor.clock();
+        for (Destination d : destinations.values()) {
+            d.rate = d.rate * (1 - RATE_SMOOTHING) + d.requests * RATE_SMOOTHING;
+            d.requests = 0;
+            d.address = null;
+            d.target = d.rate < 0.1 ? 0
+                    : (int) Math.min(maxPerDestination, Math.ceil(d.rate * Math.max(d.connectMillis, 1) / 1000.0 * 2) + 1);
+            while (!d.idle.isEmpty() && (d.idle.size() > d.target || now - d.idle.peek().since > MAX_IDLE_MS)) {
+                closeQuietly(d.idle.poll().channel);
+            }
+            d.fill();
+        }
+        reactor.getTimers().schedule(MAINTENANCE_INTERVAL_MS, this::maintain);
+    }
+
+    private int readProbe(SocketChannel ch) {
+        if (!ch.isOpen() || !ch.isConnected()) return -1;
+        probe.clear();
+        try {
+            return ch.read(probe);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static InetAddress parseLiteral(String host) {
+        try {
+            return Address.getByAddress(host);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    private static String key(String host, int port) {
+        return host + ":" + port;
+    }
+
+    private static void closeQuietly(SocketChannel ch) {
+        try {
+            ch.close();
+        } catch (IOException ignored) { }
+    }
+
+    static final class Connection {
+        final SocketChannel channel;
+        final ByteBuffer early;
+
+        private Connection(SocketChannel channel, ByteBuffer early) {
+            this.channel = channel;
+            this.early = early;
+        }
+    }
+
+    private static final class Idle {
+        private final SocketChannel channel;
+        private final long since;
+
+        private Idle(SocketChannel channel, long since) {
+            this.channel = channel;
+            this.since = since;
+        }
+    }
+
+    static final class Pending {
+        private final Destination destination;
+        private final long startedAt;
+
+        private Pending(Destination destination, long startedAt) {
+            this.destination = destination;
+            this.startedAt = startedAt;
+        }
+    }
+
+    final class Destination implements DnsResolver.Waiter {
+        private final String host;
+        private final int port;
+        private final ArrayDeque<Idle> idle = new ArrayDeque<>();
+        private final InetAddress literal;
+        private InetAddress address;
+        private boolean resolving;
+        private int connecting;
+        private int requests;
+        private double rate;
+        private int target;
+        private long connectMillis;
+
+        private Destination(String host, int port) {
+            this.host = host;
+            this.port = port;
+            this.literal = parseLiteral(host);
+        }
+
+        private SocketChannel poll() {
+            Idle entry = idle.pollLast();
+            return entry != null ? entry.channel : null;
+        }
+
+        private void fill() {
+            if (stopped || idle.size() + connecting >= target) return;
+            if (address == null && literal != null) {
+                address = literal;
+            }
+            if (address == null) {
+                if (!resolving) {
+                    resolving = true;
+                    try {
+                        reactor.resolve(this, host);
+                    } catch (IOException e) {
+                        resolving = false;
+                    }
+                }
+                return;
+            }
+            while (idle.size() + connecting < target) {
+                SocketChannel ch = null;
+                try {
+                    ch = SocketChannel.open();
+                    ch.configureBlocking(false);
+                    Pending pending = new Pending(this, Reactor.now());
+                    if (ch.connect(new InetSocketAddress(address, port))) {
+                        reactor.registerWarm(ch, pending, 0);
+                        idle.add(new Idle(ch, reactor.clock()));
+                    } else {
+                        reactor.registerWarm(ch, pending, SelectionKey.OP_CONNECT);
+                        connecting++;
+                    }
+                } catch (IOException e) {
+                    if (ch != null) {
+                        closeQuietly(ch);
+                    }
+                    reactor.getAddressHealth().recordFailure(address);
+                    address = null;
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void onResolved(List<InetAddress> addresses) {
+            resolving = false;
+            address = reactor.getAddressHealth().connectOrder(addresses).get(0);
+            fill();
+        }
+
+        @Override
+        public void onResolveFailed() {
+            resolving = false;
+        }
+
+        @Override
+        public void close() {
+            resolving = false;
+        }
+    }
+}
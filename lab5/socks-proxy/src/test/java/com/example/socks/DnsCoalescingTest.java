@@ -0,0 +1,199 @@
+package com.example.socks;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class DnsCoalescingTest {
+    private static final int SESSIONS = 50;
+    private static final long REPLY_DELAY_MS = 300;
+
+    private FakeDns dns;
+    private ServerSocket target;
+    private SocksProxy proxy;
+    private int proxyPort;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        dns = new FakeDns();
+        target = new ServerSocket(0, 100, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            while (!target.isClosed()) {
+                try {
+                    target.accept().close();
+                } catch (IOException ignored) {
+                }
+            }
+        }, "target");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        try (ServerSocket probe = new ServerSocket(0)) {
+            proxyPort = probe.getLocalPort();
+        }
+        proxy = new SocksProxy(ProxyConfig.parse(new String[] {
+                String.valueOf(proxyPort), "--reactors=1", "--dns=127.0.0.1:" + dns.getPort(),
+                "--drain-timeout-ms=0"}));
+        Thread server = new Thread(() -> {
+            try {
+                proxy.start();
+            } catch (IOException ignored) {
+            }
+        }, "proxy");
+        server.setDaemon(true);
+        server.start();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        proxy.stopAccepting();
+        target.close();
+        dns.close();
+    }
+
+    @Test
+    void concurrentConnectsToOneHostSendOneQueryPerType() throws Exception {
+        CountDownLatch go = new CountDownLatch(1);
+        AtomicInteger succeeded = new AtomicInteger();
+        List<Thread> clients = new ArrayList<>();
+        for (int i = 0; i < SESSIONS; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    go.await();
+                    if (connect("coalesce.test", target.getLocalPort()) == Socks5Codec.REP_SUCCEEDED) {
+                        succeeded.incrementAndGet();
+                    }
+                } catch (Exception ignored) {
+                }
+            });
+            t.start();
+            clients.add(t);
+        }
+        go.countDown();
+        for (Thread t : clients) {
+            t.join();
+        }
+
+        assertEquals(SESSIONS, succeeded.get());
+        assertEquals(1, dns.queries(Type.A));
+        assertEquals(1, dns.queries(Type.AAAA));
+    }
+
+    @Test
+    void unparseableNameFailsEveryTimeWithoutQuerying() throws Exception {
+        assertEquals(Socks5Codec.REP_HOST_UNREACHABLE, connect("a..b", target.getLocalPort()));
+        assertEquals(Socks5Codec.REP_HOST_UNREACHABLE, connect("a..b", target.getLocalPort()));
+        assertEquals(0, dns.queries(Type.A) + dns.queries(Type.AAAA));
+    }
+
+    private byte connect(String host, int port) throws IOException {
+        try (Socket s = new Socket()) {
+            s.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), proxyPort), 5000);
+            s.setSoTimeout(5000);
+            OutputStream out = s.getOutputStream();
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            out.write(new byte[] {5, 1, 0});
+            in.readFully(new byte[2]);
+            byte[] name = host.getBytes(StandardCharsets.US_ASCII);
+            byte[] request = new byte[7 + name.length];
+            request[0] = 5;
+            request[1] = 1;
+            request[3] = 3;
+            request[4] = (byte) name.length;
+            System.arraycopy(name, 0, request, 5, name.length);
+            request[5 + name.length] = (byte) (port >> 8);
+            request[6 + name.length] = (byte) port;
+            out.write(request);
+            byte[] reply = new byte[4];
+            in.readFully(reply);
+            return reply[1];
+        }
+    }
+
+    private static final class FakeDns {
+        private final DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        private final ScheduledExecutorService replies = Executors.newSingleThreadScheduledExecutor();
+        private final AtomicInteger aQueries = new AtomicInteger();
+        private final AtomicInteger aaaaQueries = new AtomicInteger();
+
+        FakeDns() throws IOException {
+            Thread t = new Thread(this::serve, "fake-dns");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        int getPort() {
+            return socket.getLocalPort();
+        }
+
+        int queries(int type) {
+            return (type == Type.A ? aQueries : aaaaQueries).get();
+        }
+
+        private void serve() {
+            byte[] buf = new byte[512];
+            while (!socket.isClosed()) {
+                try {
+                    DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                    socket.receive(packet);
+                    Message query = new Message(Arrays.copyOf(packet.getData(), packet.getLength()));
+                    Record question = query.getQuestion();
+                    Message answer = new Message(query.getHeader().getID());
+                    answer.getHeader().setFlag(Flags.QR);
+                    answer.addRecord(question, Section.QUESTION);
+                    if (question.getType() == Type.A) {
+                        aQueries.incrementAndGet();
+                        answer.addRecord(new ARecord(question.getName(), DClass.IN, 60,
+                                InetAddress.getLoopbackAddress()), Section.ANSWER);
+                    } else if (question.getType() == Type.AAAA) {
+                        aaaaQueries.incrementAndGet();
+                    }
+                    byte[] wire = answer.toWire();
+                    InetSocketAddress from = (InetSocketAddress) packet.getSocketAddress();
+                    replies.schedule(() -> send(wire, from), REPLY_DELAY_MS, TimeUnit.MILLISECONDS);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void send(byte[] wire, InetSocketAddress to) {
+            try {
+                socket.send(new DatagramPacket(wire, wire.length, to));
+            } catch (IOException ignored) {
+            }
+        }
+
+        void close() {
+            replies.shutdownNow();
+            socket.close();
+        }
+    }
+}